@@ -0,0 +1,43 @@
+package ch.retorte.heatpump;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConverterBenchmark {
+
+    // ---- Fields
+
+    private HeatpumpDataConverter converter;
+    private HeatpumpDataConverter.UnitInfo[] parents;
+    private String[] names;
+    private String[] rawValues;
+
+
+    // ---- Methods
+
+    @Setup
+    public void setUp() {
+        converter = Fixtures.converter();
+        final HeatpumpDataConverter.UnitInfo temperature = converter.getFor(null, "Temperaturen", "");
+        final HeatpumpDataConverter.UnitInfo input = converter.getFor(null, "Eingänge", "");
+        final HeatpumpDataConverter.UnitInfo output = converter.getFor(null, "Ausgänge", "");
+        parents = new HeatpumpDataConverter.UnitInfo[] { temperature, temperature, input, input, output, output, temperature, output, temperature };
+        names = new String[] { "Vorlauf", "Rücklauf", "HD", "HD", "HUP", "HUP", "VD-Heizung", "VD-Heizung", "Unbekannt" };
+        rawValues = new String[] { "34.6°C", "30.2°C", "Aus", "19.84 bar", "Ein", "48%", "28.9°C", "Ein", "x" };
+    }
+
+    // A mix of unique names, names which are told apart by their topic, ones which are resolved with the value pattern, and unknown ones.
+    @Benchmark
+    @OperationsPerInvocation(9)
+    public void getFor(Blackhole blackhole) {
+        for (int i = 0; i < names.length; i++) {
+            blackhole.consume(converter.getFor(parents[i], names[i], rawValues[i]));
+        }
+    }
+
+}
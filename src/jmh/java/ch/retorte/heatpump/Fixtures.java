@@ -0,0 +1,64 @@
+package ch.retorte.heatpump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Wires the beans by hand (as CDI would) and loads the Luxtronik frames from 'src/jmh/resources/fixtures'.
+// These are not captures, but made up after the frames of a Luxtronik 2.1 (LWD 50A/SX) while heating, with plausible values for every field.
+class Fixtures {
+
+    // ---- Statics
+
+    static final String CONTENT = "/fixtures/content.xml";
+    static final String VALUES = "/fixtures/values.xml";
+    static final String VALUES_INITIAL = "/fixtures/values-initial.xml";
+
+
+    // ---- Methods
+
+    static HeatpumpDataConverter converter() {
+        final HeatpumpDataConverter converter = new HeatpumpDataConverter();
+        converter.heatpumpLanguage = "de";
+        converter.onStart(null);
+        return converter;
+    }
+
+    static HeatpumpDataParser parser(HeatpumpDataConverter converter) {
+        final HeatpumpDataParser parser = new HeatpumpDataParser();
+        parser.dataConverter = converter;
+        return parser;
+    }
+
+    static HeatpumpDataJsonWriter jsonWriter() {
+        final HeatpumpDataJsonWriter jsonWriter = new HeatpumpDataJsonWriter();
+        jsonWriter.version = "benchmark";
+        jsonWriter.commit = "benchmark";
+        return jsonWriter;
+    }
+
+    static String load(String resource) {
+        try (InputStream in = Fixtures.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing fixture: " + resource);
+            }
+            return new String(in.readAllBytes(), UTF_8).trim();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The leaves of the content fixture, with their values set.
+    static ItemStore items(HeatpumpDataParser parser) {
+        final HeatpumpDataParser.Content content = parser.extractContent(load(CONTENT));
+        final ItemStore store = ItemStore.of(content);
+        for (int i = 0; i < content.rawValues().length; i++) {
+            store.items().get(i).setRawValue(content.rawValues()[i]);
+        }
+        return store;
+    }
+
+}
@@ -0,0 +1,50 @@
+package ch.retorte.heatpump;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParserBenchmark {
+
+    // ---- Fields
+
+    private HeatpumpDataParser parser;
+    private String content;
+    private String values;
+
+
+    // ---- Methods
+
+    @Setup
+    public void setUp() {
+        parser = Fixtures.parser(Fixtures.converter());
+        content = Fixtures.load(Fixtures.CONTENT);
+        values = Fixtures.load(Fixtures.VALUES);
+    }
+
+    // The '<Content>' frame is parsed once per session; after the first session its layout comes from the cache.
+    @Benchmark
+    public HeatpumpDataParser.Content extractContent() {
+        return parser.extractContent(content);
+    }
+
+    // The first session, where every node is resolved against the schema.
+    @Benchmark
+    public HeatpumpDataParser.Content extractContentUncached() {
+        return Fixtures.parser(parser.dataConverter).extractContent(content);
+    }
+
+    // The '<values>' frame arrives on every refresh; this is the successor of 'getUpdateIdValueMapOf'.
+    @Benchmark
+    public void extractValuesFrom(Blackhole blackhole) {
+        parser.extractValuesFrom(values, (nodeId, value) -> {
+            blackhole.consume(nodeId);
+            blackhole.consume(value);
+        });
+    }
+
+}
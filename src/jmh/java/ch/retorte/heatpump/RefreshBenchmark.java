@@ -0,0 +1,102 @@
+package ch.retorte.heatpump;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// One refresh round over a fleet of heat pumps: parse each values frame, update the changed leaves and render the document.
+// This is the work the fetcher does per pump and cron tick, without the network. The time per round shows how the CPU cost grows with the fleet,
+// the gc profiler the allocation per round; the heap each pump retains (its items, rendered leaves and document) is printed at the end of each trial.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RefreshBenchmark {
+
+    // ---- Fields
+
+    @Param({ "1", "16", "64", "128", "256" })
+    public int heatpumps;
+
+    private HeatpumpDataParser parser;
+    private HeatpumpDataJsonWriter jsonWriter;
+    private final List<Pump> pumps = new ArrayList<>();
+    private String[] frames;
+    private int round;
+    private long heapBeforePumps;
+
+
+    // ---- Methods
+
+    @Setup
+    public void setUp() {
+        parser = Fixtures.parser(Fixtures.converter());
+        jsonWriter = Fixtures.jsonWriter();
+
+        // Alternating between the two frames changes every third value on each round.
+        frames = new String[] { Fixtures.load(Fixtures.VALUES), Fixtures.load(Fixtures.VALUES_INITIAL) };
+
+        heapBeforePumps = usedHeapAfterGc();
+        for (int i = 0; i < heatpumps; i++) {
+            pumps.add(new Pump(Fixtures.items(parser)));
+        }
+    }
+
+    @Benchmark
+    public int refreshRound(Blackhole blackhole) {
+        final String frame = frames[round++ & 1];
+        int size = 0;
+        for (Pump pump : pumps) {
+            pump.sequence++;
+            parser.extractValuesFrom(frame, (nodeId, value) -> {
+                final Item item = pump.store.itemByNodeId(nodeId);
+                if (item != null && item.setRawValue(value)) {
+                    item.setChangedSequence(pump.sequence);
+                }
+            });
+            // The same steps as publishing a snapshot: copy the values out, render the changed leaves and assemble the document.
+            final double[] numerics = pump.store.copyNumerics();
+            final long[] changedSequences = pump.store.copyChangedSequences();
+            pump.renderedLeaves = jsonWriter.renderLeaves(pump.store.items(), pump.sequence, pump.renderedLeaves, pump.builder);
+            pump.json = jsonWriter.render(pump.renderedLeaves, changedSequences, 1721466485, pump.sequence, HeatpumpDataJsonWriter.ALL, pump.builder);
+            size += pump.json.length;
+            blackhole.consume(numerics);
+        }
+        return size;
+    }
+
+    // Still holding on to all pumps, so the difference to before they were created is what the fleet retains.
+    @TearDown
+    public void reportRetainedHeap() {
+        final long retained = usedHeapAfterGc() - heapBeforePumps;
+        System.out.printf("%nRetained heap: %d KiB for %d heat pump(s), %.1f KiB per heat pump%n", retained / 1024, pumps.size(), retained / 1024.0 / pumps.size());
+    }
+
+    private static long usedHeapAfterGc() {
+        // A few rounds, as a single one does not always clear everything that is unreachable.
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+
+    // ---- Inner classes
+
+    private static class Pump {
+
+        private final ItemStore store;
+        private final StringBuilder builder = new StringBuilder();
+        private String[] renderedLeaves;
+        private byte[] json;
+        private long sequence;
+
+        Pump(ItemStore store) {
+            this.store = store;
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package ch.retorte.heatpump;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+    // ---- Fields
+
+    private HeatpumpDataJsonWriter jsonWriter;
+    private List<Item> leaves;
+    private long[] changedSequences;
+    private String[] renderedLeaves;
+    private final StringBuilder builder = new StringBuilder();
+
+
+    // ---- Methods
+
+    @Setup
+    public void setUp() {
+        final HeatpumpDataParser parser = Fixtures.parser(Fixtures.converter());
+        jsonWriter = Fixtures.jsonWriter();
+
+        leaves = Fixtures.items(parser).items();
+
+        // Every third leaf counts as changed in the last refresh, as with the values fixture.
+        changedSequences = new long[leaves.size()];
+        for (int i = 0; i < leaves.size(); i++) {
+            changedSequences[i] = i % 3 == 0 ? 2 : 1;
+            leaves.get(i).setChangedSequence(changedSequences[i]);
+        }
+        renderedLeaves = jsonWriter.renderLeaves(leaves, 2, null, builder);
+    }
+
+    // Rendering the leaves changed in the last refresh, the others are taken over.
+    @Benchmark
+    public String[] renderLeaves() {
+        return jsonWriter.renderLeaves(leaves, 2, renderedLeaves, builder);
+    }
+
+    // The full document, as assembled once per refresh.
+    @Benchmark
+    public byte[] renderSnapshot() {
+        return jsonWriter.render(renderedLeaves, changedSequences, 1721466485, 2, HeatpumpDataJsonWriter.ALL, builder);
+    }
+
+    // A delta document with only the items changed in the last refresh.
+    @Benchmark
+    public byte[] renderDelta() {
+        return jsonWriter.render(renderedLeaves, changedSequences, 1721466485, 2, 1, builder);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    public void getCategory(Blackhole blackhole) {
+        for (int i = 0; i < 64; i++) {
+            blackhole.consume(leaves.get(i % leaves.size()).getCategory());
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package ch.retorte.heatpump;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Map.entry;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UnitBenchmark {
+
+    // ---- Statics
+
+    // A typical raw value of every numeric unit, as sent by the heat pump.
+    private static final Map<String, String> RAW_VALUES = Map.ofEntries(
+        entry("OPERATING_MODE", "Heizen"),
+        entry("INTEGER", "6391"),
+        entry("PERCENT", "64%"),
+        entry("DEGREE_CELSIUS", "-0.8°C"),
+        entry("HERTZ", "51 Hz"),
+        entry("KELVIN", "5.2 K"),
+        entry("HOUR_MINUTE", "02:19"),
+        entry("HOUR_MINUTE_SECONDS", "06:12:50"),
+        entry("HOURS", "14872h"),
+        entry("BAR", "19.84 bar"),
+        entry("BOOLEAN", "Ein"),
+        entry("LITRES_PER_HOUR", "1384 l/h"),
+        entry("KILO_WATTS", "6.38 kW"),
+        entry("KILO_WATT_HOURS", "48213.7 kWh")
+    );
+
+
+    // ---- Fields
+
+    @Param({ "OPERATING_MODE", "INTEGER", "PERCENT", "DEGREE_CELSIUS", "HERTZ", "KELVIN", "HOUR_MINUTE", "HOUR_MINUTE_SECONDS", "HOURS", "BAR", "BOOLEAN", "LITRES_PER_HOUR", "KILO_WATTS", "KILO_WATT_HOURS" })
+    public String unitName;
+
+    private HeatpumpDataConverter.Unit unit;
+    private HeatpumpDataConverter.ValueLookup valueLookup;
+    private String rawValue;
+
+
+    // ---- Methods
+
+    @Setup
+    public void setUp() {
+        unit = HeatpumpDataConverter.Unit.valueOf(unitName);
+        valueLookup = Fixtures.converter().valueLookup();
+        rawValue = RAW_VALUES.get(unitName);
+    }
+
+    @Benchmark
+    public double convertNumeric() {
+        return unit.convertNumeric(valueLookup, rawValue);
+    }
+
+}
@@ -0,0 +1,87 @@
+package ch.retorte.heatpump;
+
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// The leaf positions of a content layout by field key ('category.id') and by category, built once per layout and shared by all its snapshots.
+// Every level of a category path is indexed, so 'monitor' covers 'monitor.heat_quantity' too. The positions are in document order.
+// The schema identifies the keys and units by position, so clients of the binary formats know when to fetch it anew.
+public class FieldIndex {
+
+    // ---- Statics
+
+    private static final int[] NONE = new int[0];
+
+
+    // ---- Fields
+
+    private final String schema;
+    private final int[] all;
+    private final Map<String, Integer> positionsByKey;
+    private final Map<String, int[]> positionsByCategory;
+
+
+    // ---- Constructor
+
+    private FieldIndex(String schema, int[] all, Map<String, Integer> positionsByKey, Map<String, int[]> positionsByCategory) {
+        this.schema = schema;
+        this.all = all;
+        this.positionsByKey = positionsByKey;
+        this.positionsByCategory = positionsByCategory;
+    }
+
+
+    // ---- Methods
+
+    public static FieldIndex of(HeatpumpDataConverter.UnitInfo[] fields) {
+        final CRC32 schema = new CRC32();
+        final Map<String, Integer> positionsByKey = new HashMap<>();
+        final Map<String, List<Integer>> categories = new HashMap<>();
+        for (int position = 0; position < fields.length; position++) {
+            final String category = fields[position].category();
+            final String key = category + "." + fields[position].identifier();
+            positionsByKey.putIfAbsent(key, position);
+            schema.update((key + " " + fields[position].unit().marker() + "\n").getBytes(UTF_8));
+
+            for (int dot = category.indexOf('.'); 0 <= dot; dot = category.indexOf('.', dot + 1)) {
+                categories.computeIfAbsent(category.substring(0, dot), c -> new ArrayList<>()).add(position);
+            }
+            categories.computeIfAbsent(category, c -> new ArrayList<>()).add(position);
+        }
+
+        final Map<String, int[]> positionsByCategory = new HashMap<>();
+        categories.forEach((category, positions) -> positionsByCategory.put(category, positions.stream().mapToInt(Integer::intValue).toArray()));
+
+        final int[] all = new int[fields.length];
+        Arrays.setAll(all, position -> position);
+        return new FieldIndex(String.format("%08x", schema.getValue()), all, Map.copyOf(positionsByKey), Map.copyOf(positionsByCategory));
+    }
+
+    public String schema() {
+        return schema;
+    }
+
+    // The positions of the leaves within the category (if given) and with one of the keys (if given), in document order. The returned array must not be written to.
+    public int[] select(String category, Collection<String> keys) {
+        final int[] inCategory = category == null ? all : positionsByCategory.getOrDefault(category, NONE);
+        if (keys == null) {
+            return inCategory;
+        }
+
+        // Usually just a handful of keys, so they are looked up one by one and checked against the category.
+        final int[] result = new int[keys.size()];
+        int count = 0;
+        for (String key : keys) {
+            final Integer position = positionsByKey.get(key);
+            if (position != null && (category == null || 0 <= Arrays.binarySearch(inCategory, position))) {
+                result[count++] = position;
+            }
+        }
+        final int[] selected = Arrays.copyOf(result, count);
+        Arrays.sort(selected);
+        return selected;
+    }
+
+}
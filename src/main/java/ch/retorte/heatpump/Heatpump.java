@@ -0,0 +1,584 @@
+package ch.retorte.heatpump;
+
+import org.jboss.logging.Logger;
+
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+
+public class Heatpump {
+
+    // ---- Statics
+
+    private static final Logger LOG = Logger.getLogger(Heatpump.class);
+
+    private static final String URL_PATTERN = "ws://%s";
+    private static final String DEFAULT_PORT = ":8214";
+    private static final String LOGIN_COMMAND = "LOGIN;0";
+    private static final String SELECT_DATA_PATTERN = "GET;%s";
+    private static final String REFRESH_COMMAND = "REFRESH";
+
+
+    // ---- Fields
+
+    private final String id;
+    private final String address;
+    private final String logPrefix;
+
+    private final HeatpumpDataParser dataParser;
+    private final HeatpumpDataJsonWriter jsonWriter;
+    private final HeatpumpConnectionManager connections;
+    private final Consumer<HeatpumpRefresh> refreshListener;
+    private final HeatpumpInstrumentation.Recorder metrics;
+
+    private volatile boolean active = false;
+    private volatile HeatpumpSnapshot snapshot;
+
+    // Makes the snapshot versions unique over restarts, as the sequence starts over each time.
+    private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    // Requests waiting for a newer refresh, without holding a thread. They leave the set once answered or timed out, so none pile up during an outage.
+    private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+
+    private final StateMachine stateMachine;
+
+
+    // ---- Constructor
+
+    public Heatpump(String id, String address, HeatpumpDataParser dataParser, HeatpumpDataJsonWriter jsonWriter, HeatpumpConnectionManager connections, Consumer<HeatpumpRefresh> refreshListener, HeatpumpInstrumentation.Recorder metrics) {
+        this.id = id;
+        this.address = address;
+        this.logPrefix = "[" + id + "] ";
+        this.dataParser = dataParser;
+        this.jsonWriter = jsonWriter;
+        this.connections = connections;
+        this.refreshListener = refreshListener;
+        this.metrics = metrics;
+        this.stateMachine = new StateMachine();
+    }
+
+
+    // ---- Methods
+
+    public String getId() {
+        return id;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public long getLastRefresh() {
+        final HeatpumpSnapshot current = snapshot;
+        return current != null ? current.timestamp() : -1;
+    }
+
+    public byte[] getCurrentJson() {
+        final HeatpumpSnapshot current = snapshot;
+        return current != null ? current.json() : null;
+    }
+
+    public HeatpumpSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public boolean hasData() {
+        return snapshot != null;
+    }
+
+    public CompletableFuture<HeatpumpSnapshot> awaitSnapshot() {
+        return awaitSnapshotAfter(-1);
+    }
+
+    // Yields the snapshot as soon as there is a refresh newer than the given timestamp (in epoch seconds).
+    public CompletableFuture<HeatpumpSnapshot> awaitSnapshotAfter(long timestamp) {
+        final HeatpumpSnapshot current = snapshot;
+        if (current != null && timestamp < current.timestamp()) {
+            return CompletableFuture.completedFuture(current);
+        }
+
+        // Registered before looking at the data again, so a refresh in between can not be missed.
+        final Waiter waiter = new Waiter(timestamp, new CompletableFuture<>());
+        waiters.add(waiter);
+        waiter.future().whenComplete((s, e) -> waiters.remove(waiter));
+        final HeatpumpSnapshot latest = snapshot;
+        if (latest != null && timestamp < latest.timestamp()) {
+            waiter.future().complete(latest);
+        }
+        return waiter.future();
+    }
+
+    // Answers the requests waiting for this snapshot on the executor, so their rendering never runs on the WebSocket listener thread.
+    private void releaseWaitersFor(HeatpumpSnapshot published) {
+        for (Waiter waiter : waiters) {
+            if (waiter.timestamp() < published.timestamp() && waiters.remove(waiter)) {
+                waiter.future().completeAsync(() -> published, connections.executor());
+            }
+        }
+    }
+
+    // Renders a document with only the items of the given snapshot which changed after the given sequence number. Only the snapshot is read, so no lock is needed.
+    public HeatpumpSnapshot getChangesSince(HeatpumpSnapshot snapshot, long sequence) {
+        final byte[] json = jsonWriter.render(snapshot.renderedLeaves(), snapshot.changedSequences(), snapshot.timestamp(), snapshot.sequence(), sequence, new StringBuilder(snapshot.json().length));
+        return snapshot.withJson(json);
+    }
+
+    // Whether the snapshot can tell what changed since the given sequence. It cannot if the client got the sequence from another run, as it starts
+    // over with each, which is also the case if it is newer than the snapshot. Without epoch, only the latter can be told.
+    public boolean knowsChangesSince(HeatpumpSnapshot snapshot, String epoch, long sequence) {
+        return (epoch == null || epoch.equals(this.epoch)) && sequence <= snapshot.sequence();
+    }
+
+    public void start() {
+        active = true;
+        stateMachine.operate();
+    }
+
+    public void operate() {
+        if (active) {
+            stateMachine.operate();
+        }
+    }
+
+    public void stop() {
+        active = false;
+        stateMachine.terminate();
+    }
+
+
+    // ---- Inner classes
+
+    private class StateMachine {
+
+        private volatile State state = State.NEW;
+        private WebSocket webSocket;
+        private String address;
+        private ItemStore store = ItemStore.EMPTY;
+        private final List<Item> changedLeaves = new ArrayList<>();
+        private final BiConsumer<String, String> leafRefresher = this::refreshLeaf;
+        private final StringBuilder jsonBuilder = new StringBuilder();
+        private long sequence = 0;
+        private volatile long refreshSentAt = 0;
+
+        // Every connection attempt gets a new session number; callbacks of the sockets of older attempts are ignored.
+        private final AtomicInteger session = new AtomicInteger();
+        private final HeatpumpConnectionManager.Backoff backoff = connections.newBackoff();
+        private volatile int missedRefreshes = 0;
+        // When the session was lost (System.nanoTime), 0 as long as data arrives.
+        private volatile long lostAt = 0;
+
+        public StateMachine() {
+            LOG.info(logPrefix + "Initializing with state: " + state);
+        }
+
+        public boolean isCurrent(int attempt) {
+            return session.get() == attempt;
+        }
+
+        public void setOpen() {
+            LOG.info(logPrefix + "Opened WebSocket connection to: " + getHeatpumpUrl());
+            missedRefreshes = 0;
+            updateState(State.OPEN);
+            operate();
+        }
+
+        public void setLoggedInWith(String address) {
+            this.address = address;
+            updateState(State.LOGGED_IN);
+            operate();
+        }
+
+        public void setDataSelected() {
+            updateState(State.DATA_SELECTED);
+        }
+
+        public void setClose(int attempt) {
+            reconnectAfterLoss(attempt);
+        }
+
+        public void setError(int attempt) {
+            metrics.recordError();
+            reconnectAfterLoss(attempt);
+        }
+
+        private void updateState(State s) {
+            LOG.info(logPrefix + "Update state: " + state + " -> " + s);
+            state = s;
+            metrics.recordTransition(s.name());
+        }
+
+        public void refresh(WebSocket webSocket) {
+            this.webSocket = webSocket;
+        }
+
+        private void operate() {
+            switch (state) {
+                case NEW -> connect();
+                case OPEN -> {
+                    if (isAlive()) {
+                        websocketSend(LOGIN_COMMAND);
+                    }
+                }
+                case LOGGED_IN -> {
+                    if (isAlive()) {
+                        websocketSend(format(SELECT_DATA_PATTERN, address));
+                    }
+                }
+                case DATA_SELECTED -> {
+                    if (isAlive()) {
+                        refreshSentAt = System.nanoTime();
+                        websocketSend(REFRESH_COMMAND);
+                    }
+                }
+                // A connection attempt or the wait for the next one is already under way.
+                case CONNECTING, RECONNECT_PENDING -> {}
+            }
+        }
+
+        private void connect() {
+            final int attempt;
+            synchronized (this) {
+                // The cron and a scheduled reconnect may ask at the same time, but there is only one attempt at once.
+                if (state != State.NEW && state != State.RECONNECT_PENDING) {
+                    return;
+                }
+                updateState(State.CONNECTING);
+                attempt = session.incrementAndGet();
+            }
+            metrics.recordConnect();
+            // The HTTP client is shared by all heat pumps, so we only build the socket on it and never close it here.
+            connections.connect(getHeatpumpUrl(), new WebSocketListener(this, attempt)).whenComplete((socket, e) -> {
+                if (e != null) {
+                    LOG.error(logPrefix + "Error creating websocket: " + e.getMessage());
+                    setError(attempt);
+                }
+            });
+        }
+
+        // The watchdog: counts the refresh intervals without an answer and drops the session once there were too many.
+        private boolean isAlive() {
+            if (missedRefreshes++ < connections.missedRefreshes()) {
+                return true;
+            }
+
+            LOG.warn(logPrefix + "No answer for " + connections.missedRefreshes() + " refresh intervals, dropping the session.");
+            metrics.recordStale();
+            final int attempt = session.get();
+            final WebSocket stale = webSocket;
+            if (reconnectAfterLoss(attempt) && stale != null) {
+                stale.abort();
+            }
+            return false;
+        }
+
+        // Called whenever values arrived, which is what ends an outage.
+        private void dataReceived() {
+            missedRefreshes = 0;
+            backoff.reset();
+            final long lost = lostAt;
+            if (lost != 0) {
+                metrics.recordReconnect(lost);
+                lostAt = 0;
+            }
+        }
+
+        // Only the first report of a loss per session counts, anything the dead socket reports afterwards is ignored.
+        private boolean reconnectAfterLoss(int attempt) {
+            if (!session.compareAndSet(attempt, attempt + 1)) {
+                return false;
+            }
+            if (lostAt == 0) {
+                lostAt = System.nanoTime();
+            }
+
+            final Duration delay = backoff.next();
+            if (backoff.atMaximum()) {
+                metrics.recordEscalation();
+                LOG.error(logPrefix + "Still no session after " + backoff.attempts() + " attempts, trying again every " + delay.toSeconds() + " s or so.");
+            }
+            else {
+                LOG.info(logPrefix + "Reconnecting in " + delay.toMillis() + " ms (attempt " + backoff.attempts() + ").");
+            }
+            updateState(State.RECONNECT_PENDING);
+
+            final int pending = attempt + 1;
+            connections.schedule(() -> {
+                if (active && isCurrent(pending)) {
+                    connect();
+                }
+            }, delay);
+            return true;
+        }
+
+        private void websocketSend(String message) {
+            LOG.debug(logPrefix + "Sending message " + message);
+            try {
+                webSocket.sendText(message, true).get();
+            }
+            catch (InterruptedException | ExecutionException e) {
+                if (active) {
+                    LOG.error(logPrefix + "Unable to send websocket message: " + e.getMessage());
+                }
+            }
+        }
+
+        private String getHeatpumpUrl() {
+            // The address may bring its own port, otherwise the Luxtronik default is used.
+            final String hostAndPort = Heatpump.this.address.contains(":") ? Heatpump.this.address : Heatpump.this.address + DEFAULT_PORT;
+            return format(URL_PATTERN, hostAndPort);
+        }
+
+        public void setContent(HeatpumpDataParser.Content content) {
+            dataReceived();
+            final HeatpumpRefresh refresh;
+            synchronized (this) {
+                sequence++;
+                changedLeaves.clear();
+
+                final boolean sameLayout = store.hasLayoutOf(content);
+                if (sameLayout) {
+                    // A new session of the same heat pump: the items stay, only their node ids change. Values are refreshed as usual.
+                    store.rebind(content);
+                }
+                else {
+                    // A whole new set of items, so all of them count as changed.
+                    store = ItemStore.of(content);
+                    changedLeaves.addAll(store.items());
+                }
+
+                final String[] rawValues = content.rawValues();
+                for (int i = 0; i < rawValues.length; i++) {
+                    final Item item = store.items().get(i);
+                    if (setRawValue(item, rawValues[i]) && sameLayout) {
+                        changedLeaves.add(item);
+                    }
+                }
+                changedLeaves.forEach(item -> item.setChangedSequence(sequence));
+
+                publishSnapshot();
+                refresh = refreshOf(!sameLayout);
+            }
+            published(refresh);
+        }
+
+        public void refreshItemsWith(CharSequence valuesXml) {
+            dataReceived();
+            final long sentAt = refreshSentAt;
+            if (sentAt != 0) {
+                metrics.recordRoundTrip(sentAt);
+                refreshSentAt = 0;
+            }
+
+            final HeatpumpRefresh refresh;
+            synchronized (this) {
+                final long lockedAt = System.nanoTime();
+                sequence++;
+
+                // The parser hands the values straight to the indexed leaves, so only the sent items are touched.
+                changedLeaves.clear();
+                dataParser.extractValuesFrom(valuesXml, leafRefresher);
+                metrics.recordValuesParse(lockedAt);
+
+                publishSnapshot();
+                refresh = refreshOf(false);
+                metrics.recordLockHold(lockedAt);
+            }
+            published(refresh);
+        }
+
+        private void refreshLeaf(String nodeId, String rawValue) {
+            final Item item = store.itemByNodeId(nodeId);
+            if (item == null) {
+                return;
+            }
+
+            // Unchanged values return right away, so only actual conversions are timed.
+            final long start = System.nanoTime();
+            if (setRawValue(item, rawValue)) {
+                metrics.recordConversion(item.getUnitInfo().unit(), start);
+                item.setChangedSequence(sequence);
+                changedLeaves.add(item);
+            }
+        }
+
+        // A value which does not convert keeps the previous one, rather than discarding the whole refresh.
+        private boolean setRawValue(Item item, String rawValue) {
+            try {
+                return item.setRawValue(rawValue);
+            }
+            catch (RuntimeException e) {
+                LOG.warn(logPrefix + "Not able to convert '" + rawValue + "' of " + item.getCategory() + "." + item.getId() + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        // The changed leaves are copied, as the list is reused by the next refresh.
+        private HeatpumpRefresh refreshOf(boolean complete) {
+            return new HeatpumpRefresh(Heatpump.this, sequence, snapshot.timestamp(), store.items(), List.copyOf(changedLeaves), complete);
+        }
+
+        // Only after the lock is released: neither the waiting requests nor the observers hold up the next refresh.
+        private void published(HeatpumpRefresh refresh) {
+            releaseWaitersFor(snapshot);
+            try {
+                refreshListener.accept(refresh);
+            }
+            catch (RuntimeException e) {
+                LOG.error(logPrefix + "Unable to notify refresh: " + e.getMessage());
+            }
+        }
+
+        private void publishSnapshot() {
+            // Rendered once per refresh, so serving the data is just handing out these bytes.
+            final long start = System.nanoTime();
+            final long timestamp = System.currentTimeMillis() / 1000;
+
+            // The value columns keep changing on this thread, so readers get copies and only ever see the values of one refresh.
+            final String[] textuals = store.copyTextuals();
+            final double[] numerics = store.copyNumerics();
+            final long[] changedSequences = store.copyChangedSequences();
+            final List<Item> leaves = store.items();
+
+            // Unchanged leaves keep their rendering from the previous snapshot, as long as it is about the same leaves.
+            final HeatpumpSnapshot previous = snapshot;
+            final String[] previousLeaves = previous != null && previous.leaves() == leaves ? previous.renderedLeaves() : null;
+            final String[] renderedLeaves = jsonWriter.renderLeaves(leaves, sequence, previousLeaves, jsonBuilder);
+            final byte[] json = jsonWriter.render(renderedLeaves, changedSequences, timestamp, sequence, HeatpumpDataJsonWriter.ALL, jsonBuilder);
+            metrics.recordRender(start);
+            if (previous == null) {
+                metrics.recordFirstData();
+            }
+            snapshot = new HeatpumpSnapshot(sequence, timestamp, versionOf(sequence), json, leaves, store.index(), textuals, numerics, changedSequences, renderedLeaves, new ConcurrentHashMap<>());
+        }
+
+        private String versionOf(long sequence) {
+            return epoch + "-" + sequence;
+        }
+
+        public void terminate() {
+            LOG.info(logPrefix + "Terminating WebSocket connection to: " + getHeatpumpUrl());
+            // Whatever the socket reports from now on is ignored, and no reconnect is scheduled anymore.
+            session.incrementAndGet();
+            if (webSocket != null) {
+                webSocket.abort();
+            }
+        }
+
+        private enum State {
+            NEW,
+            CONNECTING,
+            OPEN,
+            LOGGED_IN,
+            DATA_SELECTED,
+            RECONNECT_PENDING
+        }
+    }
+
+    private record Waiter(long timestamp, CompletableFuture<HeatpumpSnapshot> future) {}
+
+    private class WebSocketListener implements WebSocket.Listener {
+
+        private final StateMachine stateMachine;
+        private final int session;
+        private final StringBuilder buffer = new StringBuilder();
+
+        WebSocketListener(StateMachine stateMachine, int session) {
+            this.stateMachine = stateMachine;
+            this.session = session;
+        }
+
+        @Override
+        public void onOpen(WebSocket webSocket) {
+            if (!stateMachine.isCurrent(session)) {
+                // The attempt was given up in the meantime.
+                webSocket.abort();
+                return;
+            }
+            stateMachine.refresh(webSocket);
+            LOG.debug(logPrefix + "WebSocket opened " + webSocket.toString());
+
+            WebSocket.Listener.super.onOpen(webSocket);
+
+            stateMachine.setOpen();
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            if (!stateMachine.isCurrent(session)) {
+                return null;
+            }
+            stateMachine.refresh(webSocket);
+
+            // Frames may arrive in several parts, so we collect them in a reused buffer until the last one is in.
+            buffer.append(data);
+            if (!last) {
+                return WebSocket.Listener.super.onText(webSocket, data, false);
+            }
+
+            LOG.debugf("%sWebSocket data (Size: %d): %n%s%n", logPrefix, buffer.length(), buffer);
+            metrics.recordFrameSize(buffer.length());
+
+            try {
+                if (startsWith(buffer, "<Navigation")) {
+                    String address = dataParser.extractAddressFrom(buffer);
+                    stateMachine.setLoggedInWith(address);
+                }
+                else if (startsWith(buffer, "<Content")) {
+                    final long start = System.nanoTime();
+                    final HeatpumpDataParser.Content content = dataParser.extractContent(buffer);
+                    metrics.recordContentParse(start);
+                    stateMachine.setContent(content);
+                    stateMachine.setDataSelected();
+                }
+                else if (startsWith(buffer, "<values")) {
+                    stateMachine.refreshItemsWith(buffer);
+                }
+            }
+            finally {
+                buffer.setLength(0);
+            }
+
+            return WebSocket.Listener.super.onText(webSocket, data, true);
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            if (!stateMachine.isCurrent(session)) {
+                return;
+            }
+            LOG.error(logPrefix + "WebSocket error: " + error.getMessage());
+            stateMachine.setError(session);
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            if (stateMachine.isCurrent(session)) {
+                LOG.warn(logPrefix + "WebSocket closed: " + reason);
+                stateMachine.setClose(session);
+            }
+            return WebSocket.Listener.super.onClose(webSocket, statusCode, reason);
+        }
+
+        private boolean startsWith(CharSequence content, String prefix) {
+            if (content.length() < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (content.charAt(i) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
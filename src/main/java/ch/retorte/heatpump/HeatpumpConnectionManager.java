@@ -0,0 +1,126 @@
+package ch.retorte.heatpump;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Singleton;
+import jakarta.interceptor.Interceptor;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Owns what the WebSocket sessions of all heat pumps share: one HTTP client (and thus one selector thread), the virtual thread executor
+// for their blocking work, and the policy for how fast a lost session is tried again and when a silent one is given up.
+@Singleton
+public class HeatpumpConnectionManager {
+
+    // ---- Statics
+
+    private static final String SUB_PROTOCOL = "Lux_WS";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+
+    // ---- Fields
+
+    @ConfigProperty(name = "heatpump.reconnect.initial-delay")
+    Duration initialDelay;
+
+    @ConfigProperty(name = "heatpump.reconnect.max-delay")
+    Duration maxDelay;
+
+    @ConfigProperty(name = "heatpump.watchdog.missed-refreshes")
+    int missedRefreshes;
+
+    private ExecutorService executor;
+    private HttpClient httpClient;
+
+
+    // ---- Methods
+
+    // Runs before the fetcher starts the sessions, and is shut down after it stopped them.
+    void onStart(@Observes @Priority(Interceptor.Priority.LIBRARY_BEFORE) StartupEvent event) {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        httpClient = HttpClient.newBuilder()
+            .executor(executor)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    }
+
+    void onStop(@Observes @Priority(Interceptor.Priority.LIBRARY_AFTER) ShutdownEvent event) {
+        executor.shutdownNow();
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    public Executor executor() {
+        return executor;
+    }
+
+    // Runs the task on the executor once the delay is over, without holding a thread in between.
+    public void schedule(Runnable task, Duration delay) {
+        CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS, executor).execute(task);
+    }
+
+    public CompletableFuture<WebSocket> connect(String url, WebSocket.Listener listener) {
+        return httpClient.newWebSocketBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .subprotocols(SUB_PROTOCOL)
+            .buildAsync(URI.create(url), listener);
+    }
+
+    // A session is considered stale after this many refresh intervals without a frame from the heat pump.
+    public int missedRefreshes() {
+        return missedRefreshes;
+    }
+
+    public Backoff newBackoff() {
+        return new Backoff();
+    }
+
+
+    // ---- Inner classes
+
+    // Exponential backoff with jitter: the first retry comes quickly, every further one waits twice as long up to the maximum.
+    // Each delay is picked randomly from its upper half, so heat pumps which lost their sessions together do not all come back at the same time.
+    // The listener threads of a session and the scheduled reconnects use it concurrently, e.g. a reset by arriving data while a loss is reported.
+    public class Backoff {
+
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        public Duration next() {
+            final long ceiling = ceilingOf(attempts.getAndIncrement());
+            return Duration.ofMillis(ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1));
+        }
+
+        public int attempts() {
+            return attempts.get();
+        }
+
+        public boolean atMaximum() {
+            return maxDelay.toMillis() <= ceilingOf(attempts.get() - 1);
+        }
+
+        public void reset() {
+            attempts.set(0);
+        }
+
+        private long ceilingOf(int attempt) {
+            final long initial = Math.max(1, initialDelay.toMillis());
+            return attempt < 0 ? 0 : Math.min(maxDelay.toMillis(), initial << Math.min(attempt, 30));
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+package ch.retorte.heatpump;
+
+import jakarta.inject.Singleton;
+import jakarta.ws.rs.core.MediaType;
+
+import java.io.ByteArrayOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Compact encodings of a snapshot for clients pulling from many heat pumps: instead of the item objects just the schema, the timestamp,
+// the sequence and the values by position, as listed by the schema (see '/schema' and 'heatpump.proto').
+// Numeric values go into a packed array (missing ones as null, or NaN in Protobuf), the few textual ones into a map by position.
+@Singleton
+public class HeatpumpDataBinaryWriter {
+
+    // ---- Statics
+
+    public static final String APPLICATION_CBOR = "application/cbor";
+    public static final String APPLICATION_MESSAGE_PACK = "application/x-msgpack";
+    public static final String APPLICATION_PROTOBUF = "application/x-protobuf";
+
+    private static final int PROTOBUF_VARINT = 0;
+    private static final int PROTOBUF_LENGTH_DELIMITED = 2;
+
+
+    // ---- Methods
+
+    // Encoded once per snapshot and format, on the first request for it.
+    public byte[] render(HeatpumpSnapshot snapshot, Format format) {
+        return snapshot.encodings().computeIfAbsent(format.name(), name -> switch (format) {
+            case CBOR -> renderCbor(snapshot);
+            case MESSAGE_PACK -> renderMessagePack(snapshot);
+            case PROTOBUF -> renderProtobuf(snapshot);
+        });
+    }
+
+    private byte[] renderCbor(HeatpumpSnapshot snapshot) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 + snapshot.numerics().length * 9);
+        cborHead(out, 5, 5);
+        cborText(out, "schema");
+        cborText(out, snapshot.index().schema());
+        cborText(out, "timestamp");
+        cborHead(out, 0, snapshot.timestamp());
+        cborText(out, "sequence");
+        cborHead(out, 0, snapshot.sequence());
+
+        cborText(out, "values");
+        final double[] numerics = snapshot.numerics();
+        cborHead(out, 4, numerics.length);
+        for (double numeric : numerics) {
+            if (!Double.isFinite(numeric)) {
+                out.write(0xf6);
+            }
+            else if (isSmallIntegral(numeric)) {
+                cborHead(out, numeric < 0 ? 1 : 0, numeric < 0 ? -1 - (long) numeric : (long) numeric);
+            }
+            else {
+                out.write(0xfb);
+                writeLong(out, Double.doubleToLongBits(numeric));
+            }
+        }
+
+        cborText(out, "textuals");
+        final String[] textuals = snapshot.textuals();
+        cborHead(out, 5, countOf(textuals));
+        for (int position = 0; position < textuals.length; position++) {
+            if (textuals[position] != null) {
+                cborHead(out, 0, position);
+                cborText(out, textuals[position]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Major type in the upper three bits, then the argument in as few bytes as possible (RFC 8949, section 3).
+    private void cborHead(ByteArrayOutputStream out, int majorType, long argument) {
+        final int type = majorType << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        }
+        else if (argument < 0x100) {
+            out.write(type | 24);
+            out.write((int) argument);
+        }
+        else if (argument < 0x10000) {
+            out.write(type | 25);
+            writeShort(out, (int) argument);
+        }
+        else if (argument < 0x100000000L) {
+            out.write(type | 26);
+            writeInt(out, (int) argument);
+        }
+        else {
+            out.write(type | 27);
+            writeLong(out, argument);
+        }
+    }
+
+    private void cborText(ByteArrayOutputStream out, String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        cborHead(out, 3, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private byte[] renderMessagePack(HeatpumpSnapshot snapshot) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 + snapshot.numerics().length * 9);
+        out.write(0x80 | 5);
+        messagePackText(out, "schema");
+        messagePackText(out, snapshot.index().schema());
+        messagePackText(out, "timestamp");
+        messagePackInteger(out, snapshot.timestamp());
+        messagePackText(out, "sequence");
+        messagePackInteger(out, snapshot.sequence());
+
+        messagePackText(out, "values");
+        final double[] numerics = snapshot.numerics();
+        messagePackHead(out, 0x90, 0xdc, numerics.length);
+        for (double numeric : numerics) {
+            if (!Double.isFinite(numeric)) {
+                out.write(0xc0);
+            }
+            else if (isSmallIntegral(numeric)) {
+                messagePackInteger(out, (long) numeric);
+            }
+            else {
+                out.write(0xcb);
+                writeLong(out, Double.doubleToLongBits(numeric));
+            }
+        }
+
+        messagePackText(out, "textuals");
+        final String[] textuals = snapshot.textuals();
+        messagePackHead(out, 0x80, 0xde, countOf(textuals));
+        for (int position = 0; position < textuals.length; position++) {
+            if (textuals[position] != null) {
+                messagePackInteger(out, position);
+                messagePackText(out, textuals[position]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Arrays and maps: fix variant up to 15 entries, else the 16 bit one (the 32 bit one follows it directly).
+    private void messagePackHead(ByteArrayOutputStream out, int fix, int wide, int size) {
+        if (size < 16) {
+            out.write(fix | size);
+        }
+        else if (size < 0x10000) {
+            out.write(wide);
+            writeShort(out, size);
+        }
+        else {
+            out.write(wide + 1);
+            writeInt(out, size);
+        }
+    }
+
+    private void messagePackInteger(ByteArrayOutputStream out, long value) {
+        if (0 <= value && value < 0x80) {
+            out.write((int) value);
+        }
+        else if (-32 <= value && value < 0) {
+            out.write((int) value & 0xff);
+        }
+        else if (0 <= value && value < 0x10000) {
+            out.write(0xcd);
+            writeShort(out, (int) value);
+        }
+        else if (0 <= value && value < 0x100000000L) {
+            out.write(0xce);
+            writeInt(out, (int) value);
+        }
+        else {
+            out.write(0xd3);
+            writeLong(out, value);
+        }
+    }
+
+    private void messagePackText(ByteArrayOutputStream out, String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length < 32) {
+            out.write(0xa0 | bytes.length);
+        }
+        else if (bytes.length < 0x100) {
+            out.write(0xd9);
+            out.write(bytes.length);
+        }
+        else if (bytes.length < 0x10000) {
+            out.write(0xda);
+            writeShort(out, bytes.length);
+        }
+        else {
+            out.write(0xdb);
+            writeInt(out, bytes.length);
+        }
+        out.writeBytes(bytes);
+    }
+
+    // The 'Sample' message of 'heatpump.proto'.
+    private byte[] renderProtobuf(HeatpumpSnapshot snapshot) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 + snapshot.numerics().length * 8);
+        final byte[] schema = snapshot.index().schema().getBytes(UTF_8);
+        protobufTag(out, 1, PROTOBUF_LENGTH_DELIMITED);
+        varint(out, schema.length);
+        out.writeBytes(schema);
+        protobufTag(out, 2, PROTOBUF_VARINT);
+        varint(out, snapshot.timestamp());
+        protobufTag(out, 3, PROTOBUF_VARINT);
+        varint(out, snapshot.sequence());
+
+        // Packed repeated double, missing values are NaN.
+        final double[] numerics = snapshot.numerics();
+        protobufTag(out, 4, PROTOBUF_LENGTH_DELIMITED);
+        varint(out, numerics.length * 8L);
+        for (double numeric : numerics) {
+            writeLittleEndianLong(out, Double.doubleToLongBits(Double.isFinite(numeric) ? numeric : Double.NaN));
+        }
+
+        // Map entries are messages with the key as field 1 and the value as field 2.
+        final String[] textuals = snapshot.textuals();
+        for (int position = 0; position < textuals.length; position++) {
+            if (textuals[position] == null) {
+                continue;
+            }
+            final byte[] value = textuals[position].getBytes(UTF_8);
+            final ByteArrayOutputStream entry = new ByteArrayOutputStream(value.length + 8);
+            protobufTag(entry, 1, PROTOBUF_VARINT);
+            varint(entry, position);
+            protobufTag(entry, 2, PROTOBUF_LENGTH_DELIMITED);
+            varint(entry, value.length);
+            entry.writeBytes(value);
+
+            protobufTag(out, 5, PROTOBUF_LENGTH_DELIMITED);
+            varint(out, entry.size());
+            out.writeBytes(entry.toByteArray());
+        }
+        return out.toByteArray();
+    }
+
+    private void protobufTag(ByteArrayOutputStream out, int field, int wireType) {
+        varint(out, (long) field << 3 | wireType);
+    }
+
+    private void varint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private boolean isSmallIntegral(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15;
+    }
+
+    private int countOf(String[] values) {
+        int result = 0;
+        for (String value : values) {
+            if (value != null) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+
+    private void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+
+    private void writeLittleEndianLong(ByteArrayOutputStream out, long value) {
+        for (int i = 0; i < 8; i++) {
+            out.write((int) (value >>> (8 * i)));
+        }
+    }
+
+
+    // ---- Inner classes
+
+    public enum Format {
+        CBOR(APPLICATION_CBOR),
+        MESSAGE_PACK(APPLICATION_MESSAGE_PACK),
+        PROTOBUF(APPLICATION_PROTOBUF);
+
+        private final MediaType mediaType;
+
+        Format(String mediaType) {
+            this.mediaType = MediaType.valueOf(mediaType);
+        }
+
+        public MediaType mediaType() {
+            return mediaType;
+        }
+
+        public static Format of(MediaType mediaType) {
+            for (Format format : values()) {
+                if (format.mediaType.isCompatible(mediaType)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+}
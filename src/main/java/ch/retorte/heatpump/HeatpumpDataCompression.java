@@ -0,0 +1,117 @@
+package ch.retorte.heatpump;
+
+import jakarta.inject.Singleton;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+// Gzip for the responses (and export requests) which are large enough to be worth it. The documents of a snapshot are compressed
+// once per refresh and kept with it, so all clients get the same compressed bytes until the next refresh.
+@Singleton
+public class HeatpumpDataCompression {
+
+    // ---- Statics
+
+    public static final String GZIP = "gzip";
+
+    private static final String COMPRESSED_SUFFIX = "." + GZIP;
+    private static final String COMPRESSED_TAG_SUFFIX = "-gz";
+
+
+    // ---- Fields
+
+    @ConfigProperty(name = "heatpump.compression.min-size")
+    int minSize;
+
+
+    // ---- Methods
+
+    // A response with a document of the snapshot (e.g. 'json'), compressed if the client accepts it. The compressed bytes are cached under the given name.
+    public Response.ResponseBuilder ok(HeatpumpSnapshot snapshot, String name, byte[] body, HttpHeaders headers) {
+        if (!isWorthCompressing(body) || !acceptsGzip(headers)) {
+            return uncompressed(body);
+        }
+        return compressed(snapshot.encodings().computeIfAbsent(name + COMPRESSED_SUFFIX, n -> gzip(body)));
+    }
+
+    // A response with a document only made for this request; compressed on the spot if the client accepts it.
+    public Response.ResponseBuilder ok(byte[] body, HttpHeaders headers) {
+        if (!isWorthCompressing(body) || !acceptsGzip(headers)) {
+            return uncompressed(body);
+        }
+        return compressed(gzip(body));
+    }
+
+    // The gzipped bytes are a representation of their own, so clients accepting them get another tag. Whether a body is actually compressed
+    // only depends on its size, which is the same for all clients of a version, so the tag can be decided before the body is rendered.
+    public EntityTag entityTag(String value, HttpHeaders headers) {
+        return new EntityTag(acceptsGzip(headers) ? value + COMPRESSED_TAG_SUFFIX : value);
+    }
+
+    // Small bodies hardly get smaller, and the compression would cost more than it saves.
+    public boolean isWorthCompressing(byte[] body) {
+        return minSize <= body.length;
+    }
+
+    public byte[] gzip(byte[] body) {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(result)) {
+            out.write(body);
+        }
+        catch (IOException e) {
+            // Not going to happen in memory.
+            throw new UncheckedIOException(e);
+        }
+        return result.toByteArray();
+    }
+
+    private Response.ResponseBuilder uncompressed(byte[] body) {
+        return Response.ok(body).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+
+    private Response.ResponseBuilder compressed(byte[] body) {
+        return Response.ok(body)
+            .header(HttpHeaders.CONTENT_ENCODING, GZIP)
+            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+
+    // Looks for 'gzip' (or '*') in e.g. 'Accept-Encoding: gzip, deflate, br;q=1.0', unless it comes with 'q=0'.
+    private boolean acceptsGzip(HttpHeaders headers) {
+        final String acceptEncoding = headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim();
+            if (!name.equalsIgnoreCase(GZIP) && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") && qualityOf(parameter.substring(2)) <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private double qualityOf(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+}
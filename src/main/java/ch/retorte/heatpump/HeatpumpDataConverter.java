@@ -1,38 +1,21 @@
 package ch.retorte.heatpump;
 
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.Multimap;
 import io.quarkus.runtime.StartupEvent;
 import jakarta.enterprise.event.Observes;
 import jakarta.inject.Singleton;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
-import java.time.LocalDate;
-import java.time.LocalTime;
-import java.time.ZoneOffset;
-import java.util.*;
-import java.util.function.Consumer;
-import java.util.regex.Matcher;
+import java.util.ResourceBundle;
 import java.util.regex.Pattern;
 
-import static ch.retorte.heatpump.HeatpumpDataConverter.Unit.*;
-import static java.lang.Integer.parseInt;
-import static java.time.format.DateTimeFormatter.ISO_TIME;
 import static java.util.Arrays.stream;
 
 @Singleton
 public class HeatpumpDataConverter {
 
-    // ---- Statics
-
-    public static final String KEY_TRANSLATION_FILE = "keyTranslation";
-
-
     // ---- Fields
 
-    private final Multimap<String, UnitInfo> fields = LinkedListMultimap.create();
-
-    private ResourceBundle key;
+    private HeatpumpFieldSchema schema;
 
     @ConfigProperty(name = "heatpump.language")
     String heatpumpLanguage;
@@ -40,167 +23,45 @@ public class HeatpumpDataConverter {
 
     // ---- Methods
 
+    // The schema of a bundled language is already there (in the native image since build time), so this is just a lookup.
     void onStart(@Observes StartupEvent event) {
-        loadTranslation();
-        configureFields();
+        schema = HeatpumpFieldSchema.forLanguage(heatpumpLanguage);
     }
 
-    private void loadTranslation() {
-        key = keyTranslationFor(heatpumpLanguage);
+    // Resolves a field by its position in the tree, i.e. by the topic it is in (null for the top level) and its localized name.
+    public UnitInfo getFor(UnitInfo parent, String fieldIdentifier, String fieldValue) {
+        return schema.getFor(parent, fieldIdentifier, fieldValue);
     }
 
-    private void configureFields() {
-        // Temperature
-        addTopic(key.getString("temperature"), "temperature");
-        add(key.getString("temperature.flow"), "flow", DEGREE_CELSIUS);
-        add(key.getString("temperature.return_flow"), "return_flow", DEGREE_CELSIUS);
-        add(key.getString("temperature.return_flow_target"), "return_flow_target", DEGREE_CELSIUS);
-        add(key.getString("temperature.hot_gas"), "hot_gas", DEGREE_CELSIUS);
-        add(key.getString("temperature.outdoor"), "outdoor", DEGREE_CELSIUS);
-        add(key.getString("temperature.outdoor_avg"), "outdoor_avg", DEGREE_CELSIUS);
-        add(key.getString("temperature.domestic_hot_water"), "domestic_hot_water", DEGREE_CELSIUS);
-        add(key.getString("temperature.domestic_hot_water_target"), "domestic_hot_water_target", DEGREE_CELSIUS);
-        add(key.getString("temperature.heat_source_inlet"), "heat_source_inlet", DEGREE_CELSIUS);
-        add(key.getString("temperature.heat_source_out"), "heat_source_out", DEGREE_CELSIUS);
-        add(key.getString("temperature.flow_max"), "flow_max", DEGREE_CELSIUS);
-        add(key.getString("temperature.suction_compressor"), "suction_compressor", DEGREE_CELSIUS);
-        add(key.getString("temperature.compressor_heating"), "compressor_heating", DEGREE_CELSIUS, ".*" + DEGREE_CELSIUS.marker());
-        add(key.getString("temperature.overheating"), "overheating", KELVIN);
-
-        // Input
-        addTopic(key.getString("input"), "input");
-        add(key.getString("input.defrost_brine_flow"), "defrost_brine_flow", BOOLEAN);
-        add(key.getString("input.supplier_off_time"), "supplier_off_time", BOOLEAN);
-        add(key.getString("input.high_pressure_pressostat"), "high_pressure_pressostat", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
-        add(key.getString("input.motor_protection"), "motor_protection", BOOLEAN);
-        add(key.getString("input.high_pressure_sensor"), "high_pressure_sensor", BAR, ".*" + BAR.marker());
-        add(key.getString("input.low_pressure_sensor"), "low_pressure_sensor", BAR);
-        add(key.getString("input.pump_flow"), "pump_flow", LITRES_PER_HOUR);
-
-        // Output
-        addTopic(key.getString("output"), "output");
-        add(key.getString("output.domestic_hot_water_pump"), "domestic_hot_water_pump", BOOLEAN);
-        add(key.getString("output.floor_heating_pump"), "floor_heating_pump", BOOLEAN);
-        add(key.getString("output.heating_pump"), "heating_pump", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
-        add(key.getString("output.ventilator_well_brine_pump"), "ventilator_well_brine_pump", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
-        add(key.getString("output.compressor"), "compressor", BOOLEAN);
-        add(key.getString("output.circulation_pump"), "circulation_pump", BOOLEAN);
-        add(key.getString("output.additional_circulation_pump"), "additional_circulation_pump", BOOLEAN);
-        add(key.getString("output.additional_heating_generator_1"), "additional_heating_generator_1", BOOLEAN);
-        add(key.getString("output.additional_heating_generator_2"), "additional_heating_generator_2", BOOLEAN);
-        add(key.getString("output.compressor_heating"), "compressor_heating", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
-        add(key.getString("output.compressor_speed_target"), "compressor_speed_target", HERTZ);
-        add(key.getString("output.compressor_speed"), "compressor_speed", HERTZ);
-        add(key.getString("output.ventilator_well_brine_pump_power"), "ventilator_well_brine_pump_power", PERCENT, ".*" + PERCENT.marker());
-        add(key.getString("output.heating_pump_power"), "heating_pump_power", PERCENT, ".*" + PERCENT.marker());
-
-        // Timing
-        addTopic(key.getString("timing"), "timing");
-        add(key.getString("timing.heat_pump_up"), "heat_pump_up", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.additional_heating_1_up"), "additional_heating_1_up", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.additional_heating_2_up"), "additional_heating_2_up", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.net_input_delay"), "net_input_delay", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.off_time_switching_cycle"), "off_time_switching_cycle", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.compressor_down"), "compressor_down", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.heating_control_more"), "heating_control_more", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.heating_control_less"), "heating_control_less", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.thermal_disinfection_up"), "thermal_disinfection_up", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.domestic_hot_water_blockade"), "domestic_hot_water_blockade", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.release_additional_heating"), "release_additional_heating", HOUR_MINUTE_SECONDS);
-        add(key.getString("timing.release_cooling"), "release_cooling", HOUR_MINUTE_SECONDS);
-
-        // Operating time
-        addTopic(key.getString("operating_time"), "operating_time");
-        add(key.getString("operating_time.compressor_operating_hours"), "compressor_operating_hours", HOURS);
-        add(key.getString("operating_time.compressor_impulses"), "compressor_impulses", INTEGER);
-        add(key.getString("operating_time.compressor_avg_runtime"), "compressor_avg_runtime", HOUR_MINUTE);
-        add(key.getString("operating_time.additional_heating_1_operating_hours"), "additional_heating_1_operating_hours", HOURS);
-        add(key.getString("operating_time.additional_heating_2_operating_hours"), "additional_heating_2_operating_hours", HOURS);
-        add(key.getString("operating_time.heat_pump_operating_hours"), "heat_pump_operating_hours", HOURS);
-        add(key.getString("operating_time.heating_operating_hours"), "heating_operating_hours", HOURS);
-        add(key.getString("operating_time.dhw_operating_hours"), "dhw_operating_hours", HOURS);
-
-        // Status
-        addTopic(key.getString("status"), "status");
-        add(key.getString("status.heat_pump_type"), "heat_pump_type", TEXT);
-        add(key.getString("status.software_version"), "software_version", TEXT);
-        add(key.getString("status.processor_version"), "processor_version", TEXT);
-        add(key.getString("status.io_version"), "io_version", HTML);
-        add(key.getString("status.interface_version"), "interface_version", HTML);
-        add(key.getString("status.inverter_version"), "inverter_version", TEXT);
-        add(key.getString("status.bivalence_level"), "bivalence_level", INTEGER);
-        add(key.getString("status.mode"), "mode", OPERATING_MODE);
-        add(key.getString("status.heating_capacity"), "heating_capacity", KILO_WATTS);
-
-        // Energy monitor
-        addTopic(key.getString("monitor"), "monitor");
-        // Heat amount
-        addTopic(key.getString("monitor.heat_quantity"), "heat_quantity");
-        add(key.getString("monitor.heat_quantity.heating"), "heating", KILO_WATT_HOURS);
-        add(key.getString("monitor.heat_quantity.domestic_hot_water"), "domestic_hot_water", KILO_WATT_HOURS);
-        add(key.getString("monitor.heat_quantity.total"), "total", KILO_WATT_HOURS);
-        // Energy used
-        addTopic(key.getString("monitor.energy_input"), "energy_input");
-        add(key.getString("monitor.energy_input.heating"), "heating", KILO_WATT_HOURS);
-        add(key.getString("monitor.energy_input.domestic_hot_water"), "domestic_hot_water", KILO_WATT_HOURS);
-        add(key.getString("monitor.energy_input.total"), "total", KILO_WATT_HOURS);
+    // Which of the value patterns of an ambiguous name the value matches, see HeatpumpFieldSchema.
+    public long valueShapeOf(String fieldIdentifier, String fieldValue) {
+        return schema.valueShapeOf(fieldIdentifier, fieldValue);
     }
 
-    private void addTopic(String fieldIdentifier, String jsonIdentifier) {
-        add(fieldIdentifier, jsonIdentifier, null, null);
+    // The number of fields in the schema; the field indexes are dense below it.
+    public int fieldCount() {
+        return schema.fieldCount();
     }
 
-    private void add(String fieldIdentifier, String jsonIdentifier, Unit unit) {
-        add(fieldIdentifier, jsonIdentifier, unit, null);
+    public ValueLookup valueLookup() {
+        return schema.valueLookup();
     }
 
-    private void add(String fieldIdentifier, String jsonIdentifier, Unit unit, String valuePattern) {
-        fields.put(fieldIdentifier, new UnitInfo(jsonIdentifier, unit, valuePattern));
-    }
-
-    public UnitInfo getFor(String fieldIdentifier, String fieldValue) {
-        Collection<UnitInfo> unitInfos = fields.get(fieldIdentifier);
-        if (unitInfos.isEmpty()) {
-            return null;
-        }
-        else if (unitInfos.size() == 1) {
-            return unitInfos.iterator().next();
-        }
-        else {
-            // If there is more than one unit registered for the given key we first check if one matches the given value with its regex pattern.
-            for (UnitInfo unitInfo : unitInfos) {
-                if (matches(unitInfo, fieldValue)) {
-                    return unitInfo;
-                }
-            }
 
-            // If there is no match with the regex we just yield the first unit.
-            return unitInfos.iterator().next();
-        }
-    }
+    // ---- Inner classes
 
-    private boolean matches(UnitInfo unitInfo, String fieldValue) {
-        if (unitInfo.valueMatchingRegex() != null) {
-            Pattern pattern = Pattern.compile(unitInfo.valueMatchingRegex());
-            Matcher matcher = pattern.matcher(fieldValue);
-            return matcher.matches();
-        }
-        return false;
-    }
+    // A field of the schema, shared by the items of all heat pumps.
+    public record UnitInfo(int index, String name, String identifier, String category, Unit unit, Pattern valuePattern) {}
 
-    private ResourceBundle keyTranslationFor(String languageTag) {
-        return ResourceBundle.getBundle(KEY_TRANSLATION_FILE, Locale.forLanguageTag(languageTag));
-    }
+    // The localized value keywords, looked up once from the translation bundle instead of on every conversion.
+    public record ValueLookup(String on, String[] modes) {
 
-    public ResourceBundle bundle() {
-        return key;
+        static ValueLookup of(ResourceBundle bundle) {
+            final String[] modes = stream(bundle.getString("data.mode.list").split(";")).map(String::trim).toArray(String[]::new);
+            return new ValueLookup(bundle.getString("data.binary.1"), modes);
+        }
     }
 
-
-    // ---- Inner classes
-
-    public record UnitInfo(String identifier, Unit unit, String valueMatchingRegex) {}
-
     public enum Unit {
 
         // ---- Enums
@@ -225,8 +86,13 @@ public class HeatpumpDataConverter {
 
         // ---- Static
 
+        // Shown for the flow while the pump is off. Only the flow has such a placeholder, so a '---' (or a lone '-') in any other unit is rejected like any non-number.
         private static final String LITRES_PER_HOUR_ZERO = "---";
-        private static final Integer HEATING_MODE_DEFAULT = 0;
+        private static final int HEATING_MODE_DEFAULT = 0;
+
+        // Up to 15 digits the mantissa is exact as a double, and so are these powers of ten; the one division is then rounded just like Double.parseDouble would.
+        private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+        private static final int MAX_DIGITS = 15;
 
 
         // ---- Fields
@@ -253,127 +119,170 @@ public class HeatpumpDataConverter {
             return marker;
         }
 
-        public void convertWith(ResourceBundle bundle, String rawValue, Consumer<String> textualConsumer, Consumer<Number> numericConsumer) {
-            if (isNumeric()) {
-                numericConsumer.accept(convertNumeric(bundle, rawValue));
-            }
-            else {
-                textualConsumer.accept(convertTextual(rawValue));
-            }
+        public boolean isIntegral() {
+            return switch (this) {
+                case DEGREE_CELSIUS, KELVIN, BAR, KILO_WATTS, KILO_WATT_HOURS -> false;
+                default -> numeric;
+            };
         }
 
-        private String convertTextual(String value) {
+        // The numeric units parse the value right from the raw characters; only the unit marker and whitespace may come with the number.
+        public double convertNumeric(ValueLookup lookup, CharSequence value) {
             return switch (this) {
-                case TEXT -> value;
-                case HTML -> convertHtml(value);
-                default -> value;
+                case OPERATING_MODE -> convertOperatingMode(lookup, value);
+                case BOOLEAN -> contentEquals(value, lookup.on()) ? 1 : 0;
+                case HOUR_MINUTE, HOUR_MINUTE_SECONDS -> convertTime(value);
+                case LITRES_PER_HOUR -> isLitresPerHourZero(value) ? 0 : parseDecimal(value, marker);
+                case INTEGER -> parseDecimal(value, "");
+                default -> parseDecimal(value, marker);
             };
         }
-        
-        private Number convertNumeric(ResourceBundle bundle, String value) {
+
+        public String convertTextual(CharSequence value) {
             return switch (this) {
-                case OPERATING_MODE -> convertOperatingMode(bundle, value);
-                case INTEGER -> parseInt(value);
-                case PERCENT -> convertPercent(value);
-                case DEGREE_CELSIUS -> convertCelsiusTemperature(value);
-                case HERTZ -> convertHertz(value);
-                case KELVIN -> convertKelvinTemperature(value);
-                case HOUR_MINUTE -> convertHourMinute(value);
-                case HOUR_MINUTE_SECONDS -> convertHourMinuteSecond(value);
-                case HOURS -> convertHours(value);
-                case BAR -> convertBarPressure(value);
-                case BOOLEAN -> convertBoolean(bundle, value);
-                case LITRES_PER_HOUR -> convertLitresPerHourFlow(value);
-                case KILO_WATTS -> convertKiloWatts(value);
-                case KILO_WATT_HOURS -> convertKiloWattHours(value);
-                default -> Double.valueOf(value);
+                case HTML -> convertHtml(value.toString());
+                default -> value.toString();
             };
         }
 
 
         // ---- Converter methods
 
-        private static Double convertCelsiusTemperature(String celsiusTemperature) {
-            return Double.valueOf(celsiusTemperature.replace(DEGREE_CELSIUS.marker(),  "").trim());
-        }
-
-        private static Double convertKelvinTemperature(String kelvinTemperature) {
-            return Double.valueOf(kelvinTemperature.replace(KELVIN.marker(),  "").trim());
+        private static String convertHtml(String html) {
+            return html.replaceAll("\\<.*?>", "").trim();
         }
 
-        private static Double convertBarPressure(String barPressure) {
-            return Double.valueOf(barPressure.replace(BAR.marker(),  "").trim());
+        private static int convertOperatingMode(ValueLookup lookup, CharSequence mode) {
+            final String[] heatingModes = lookup.modes();
+            for (int index = 0; index < heatingModes.length; index++) {
+                if (contentEquals(mode, heatingModes[index])) {
+                    return index;
+                }
+            }
+            return HEATING_MODE_DEFAULT;
         }
 
-        private static Double convertKiloWatts(String kiloWatts) {
-            return Double.valueOf(kiloWatts.replace(KILO_WATTS.marker(),  "").trim());
-        }
+        // Reads an (optionally signed) decimal number, e.g. '23.8' from '23.8°C' or '17.46 bar'. Anything but whitespace and the unit marker around it is
+        // rejected, e.g. an exponent as in '1e3' or a trailing '12.3abc', as the heat pump never sends such values.
+        static double parseDecimal(CharSequence value, String marker) {
+            final int length = value.length();
+            int i = skipWhitespace(value, 0);
+            final int start = i;
+
+            boolean negative = false;
+            if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                negative = value.charAt(i) == '-';
+                i++;
+            }
 
-        private static Double convertKiloWattHours(String kiloWattHours) {
-            return Double.valueOf(kiloWattHours.replace(KILO_WATT_HOURS.marker(),  "").trim());
-        }
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = -1;
+            for (; i < length; i++) {
+                final char c = value.charAt(i);
+                if ('0' <= c && c <= '9') {
+                    if (digits < MAX_DIGITS) {
+                        mantissa = mantissa * 10 + (c - '0');
+                    }
+                    digits++;
+                    if (0 <= fractionDigits) {
+                        fractionDigits++;
+                    }
+                }
+                else if (c == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                }
+                else {
+                    break;
+                }
+            }
 
-        private static Integer convertHours(String hours) {
-            return Integer.valueOf(hours.replace(HOURS.marker(),  ""));
-        }
+            if (digits == 0 || !isUnitSuffix(value, i, marker)) {
+                throw new NumberFormatException("Not a number: " + value);
+            }
+            if (MAX_DIGITS < digits) {
+                // Too long for the fast path, which never happens with the heat pump values.
+                return Double.parseDouble(value.subSequence(start, i).toString());
+            }
 
-        private static Integer convertHertz(String hertz) {
-            return Integer.valueOf(hertz.replace(HERTZ.marker(),  "").trim());
+            final double result = 0 < fractionDigits ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+            return negative ? -result : result;
         }
 
-        private static Integer convertPercent(String percent) {
-            return Integer.valueOf(percent.replace(PERCENT.marker(),  "").trim());
+        private static boolean isLitresPerHourZero(CharSequence value) {
+            final int start = skipWhitespace(value, 0);
+            return regionMatches(value, start, LITRES_PER_HOUR_ZERO) && isUnitSuffix(value, start + LITRES_PER_HOUR_ZERO.length(), LITRES_PER_HOUR.marker());
         }
 
-        private static String convertHtml(String html) {
-            return html.replaceAll("\\<.*?>", "").trim();
+        // Whether nothing but whitespace and the unit marker (if any) follow from the given position.
+        private static boolean isUnitSuffix(CharSequence value, int from, String marker) {
+            int i = skipWhitespace(value, from);
+            if (!marker.isEmpty() && regionMatches(value, i, marker)) {
+                i = skipWhitespace(value, i + marker.length());
+            }
+            return i == value.length();
         }
 
-        private static Integer convertOperatingMode(ResourceBundle bundle, String mode) {
-            final String heatingModeListString = bundle.getString("data.mode.list");
-            final List<String> heatingModes = stream(heatingModeListString.split(";")).map(String::trim).toList();
-
-            for (int index = 0; index < heatingModes.size(); index++) {
-                final String heatingMode = heatingModes.get(index);
-                if (heatingMode.equals(mode)) {
-                    return index;
+        // Converts 'hh:mm' or 'hh:mm:ss' to seconds. The hours may go beyond a day, e.g. for the time since the heat pump is up.
+        private static long convertTime(CharSequence value) {
+            long seconds = 0;
+            long part = 0;
+            int parts = 0;
+            boolean inPart = false;
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if ('0' <= c && c <= '9') {
+                    part = part * 10 + (c - '0');
+                    inPart = true;
+                }
+                else if (c == ':' && inPart) {
+                    seconds = seconds * 60 + part;
+                    part = 0;
+                    parts++;
+                    inPart = false;
+                }
+                else if (!Character.isWhitespace(c)) {
+                    throw new NumberFormatException("Not a time: " + value);
                 }
             }
+            if (!inPart || parts < 1 || 2 < parts) {
+                throw new NumberFormatException("Not a time: " + value);
+            }
 
-            return HEATING_MODE_DEFAULT;
+            seconds = seconds * 60 + part;
+            return parts == 1 ? seconds * 60 : seconds;
         }
 
-        private static Integer convertBoolean(ResourceBundle bundle, String bool) {
-            final String on = bundle.getString("data.binary.1");
-            if (bool.equals(on)) {
-                return 1;
+        private static boolean contentEquals(CharSequence value, String expected) {
+            if (value.length() != expected.length()) {
+                return false;
             }
-            else {
-                return 0;
+            for (int i = 0; i < expected.length(); i++) {
+                if (value.charAt(i) != expected.charAt(i)) {
+                    return false;
+                }
             }
+            return true;
         }
 
-        private static Long convertHourMinute(String hourMinute) {
-            LocalTime parsedTime = LocalTime.parse(hourMinute, ISO_TIME);
-            return parsedTime.toEpochSecond(LocalDate.EPOCH, ZoneOffset.UTC);
-        }
-
-        private static Integer convertHourMinuteSecond(String hourMinuteSecond) {
-            final String[] parts = hourMinuteSecond.split(":");
-            final int hour = parseInt(parts[0]);
-            final int minute = parseInt(parts[1]);
-            final int second = parseInt(parts[2]);
-            return hour * 3600 + minute * 60 + second;
+        private static boolean regionMatches(CharSequence value, int start, String expected) {
+            if (value.length() - start < expected.length()) {
+                return false;
+            }
+            for (int i = 0; i < expected.length(); i++) {
+                if (value.charAt(start + i) != expected.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        private static Integer convertLitresPerHourFlow(String litresPerHour) {
-            final String result = litresPerHour.replace(LITRES_PER_HOUR.marker(), "").trim();
-            if (LITRES_PER_HOUR_ZERO.equals(result)) {
-                return 0;
-            }
-            else {
-                return Integer.valueOf(result);
+        private static int skipWhitespace(CharSequence value, int from) {
+            int i = from;
+            while (i < value.length() && Character.isWhitespace(value.charAt(i))) {
+                i++;
             }
+            return i;
         }
 
     }
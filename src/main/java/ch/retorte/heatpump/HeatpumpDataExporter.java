@@ -0,0 +1,353 @@
+package ch.retorte.heatpump;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Optionally pushes the numeric values of every refresh to an InfluxDB (or anything else understanding the line protocol).
+// Refreshes are batched in memory; while the sink is not reachable (or the sender falls behind) they go to a spool on disk, which is replayed once it is back.
+// The listener threads only ever hand refreshes over to the queues, all disk and network access is done by the sender thread.
+@Singleton
+public class HeatpumpDataExporter {
+
+    // ---- Statics
+
+    private static final Logger LOG = Logger.getLogger(HeatpumpDataExporter.class);
+
+    private static final String MEASUREMENT = "heatpump";
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final int OVERFLOW_CAPACITY = 1000;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(5);
+
+    private static final String SPOOL_SUFFIX = ".lp";
+    private static final long SPOOL_FILE_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_SPOOL_FILES = 100;
+
+
+    // ---- Injects
+
+    @Inject
+    HeatpumpDataCompression compression;
+
+
+    // ---- Fields
+
+    @ConfigProperty(name = "heatpump.export.influx.url")
+    Optional<String> url;
+
+    @ConfigProperty(name = "heatpump.export.influx.token")
+    Optional<String> token;
+
+    @ConfigProperty(name = "heatpump.export.interval")
+    Duration interval;
+
+    @ConfigProperty(name = "heatpump.export.spool.path")
+    String spoolPath;
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // Refreshes which do not fit into the queue; the sender moves them to the spool.
+    private final BlockingQueue<String> overflow = new ArrayBlockingQueue<>(OVERFLOW_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private HttpClient httpClient;
+    private Thread sender;
+    private volatile boolean running;
+    private Path spoolDirectory;
+
+    // Only touched by the sender thread.
+    private Path currentSpoolFile;
+    private boolean overflowSpooled;
+    private boolean sinkDown;
+    private long nextAttempt;
+    private Duration retryDelay;
+
+
+    // ---- Methods
+
+    void onStart(@Observes StartupEvent event) {
+        if (url.isEmpty()) {
+            return;
+        }
+
+        try {
+            spoolDirectory = Path.of(spoolPath);
+            Files.createDirectories(spoolDirectory);
+        }
+        catch (IOException e) {
+            LOG.error("Not able to create spool at " + spoolPath + ", not exporting: " + e.getMessage());
+            return;
+        }
+
+        httpClient = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+        retryDelay = interval;
+
+        // Anything left over from the last run gets replayed first.
+        sinkDown = !spoolFiles().isEmpty();
+
+        running = true;
+        sender = Thread.ofPlatform().name("heatpump-export").daemon().start(this::sendLoop);
+        LOG.info("Exporting to " + url.get() + " every " + interval + ".");
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        if (sender == null) {
+            return;
+        }
+
+        running = false;
+        sender.interrupt();
+        try {
+            sender.join(REQUEST_TIMEOUT.multipliedBy(2));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called on the WebSocket listener thread: the refresh is encoded and queued, but never waited for.
+    void onRefresh(@Observes HeatpumpRefresh refresh) {
+        if (!running) {
+            return;
+        }
+
+        final String lines = encode(refresh);
+        if (lines.isEmpty() || queue.offer(lines)) {
+            return;
+        }
+
+        // The sender is stuck (e.g. replaying a large spool to a slow sink). It spools the overflow as soon as it gets to it,
+        // and only if that is full as well refreshes are dropped.
+        if (overflow.isEmpty()) {
+            LOG.warn("Export is not keeping up, spooling refreshes to " + spoolDirectory + ".");
+        }
+        if (!overflow.offer(lines) && dropped.getAndIncrement() == 0) {
+            LOG.error("Export is not keeping up, dropping refreshes.");
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    // One line per numeric value, e.g. 'heatpump,pump=cellar,category=temperature,id=flow numeric=23.8 1721466485'.
+    private String encode(HeatpumpRefresh refresh) {
+        final StringBuilder builder = new StringBuilder(refresh.leaves().size() * 80);
+        for (Item item : refresh.leaves()) {
+            final double numeric = item.getNumeric();
+            if (!Double.isFinite(numeric)) {
+                continue;
+            }
+
+            builder.append(MEASUREMENT);
+            appendTag(builder, "pump", refresh.heatpump().getId());
+            appendTag(builder, "category", item.getCategory());
+            appendTag(builder, "id", item.getId());
+            builder.append(" numeric=").append(numeric).append(' ').append(refresh.timestamp()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private void appendTag(StringBuilder builder, String key, String value) {
+        builder.append(',').append(key).append('=');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == '=' || c == ' ' || c == '\\') {
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+    }
+
+    private void sendLoop() {
+        final List<String> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                // Collects the refreshes of one interval into a single request.
+                final String first = queue.poll(interval.toMillis(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    if (running) {
+                        Thread.sleep(interval.toMillis());
+                    }
+                    queue.drainTo(batch);
+                }
+            }
+            catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+
+            spoolOverflow();
+            if (sinkDown ? nextAttempt <= System.currentTimeMillis() : overflowSpooled) {
+                replaySpool();
+            }
+            if (!batch.isEmpty()) {
+                final String body = String.join("", batch);
+                if (sinkDown || !send(body)) {
+                    spool(body);
+                }
+                batch.clear();
+            }
+        }
+        spoolOverflow();
+    }
+
+    private void spoolOverflow() {
+        final List<String> lines = new ArrayList<>();
+        overflow.drainTo(lines);
+        if (!lines.isEmpty()) {
+            spool(String.join("", lines));
+            overflowSpooled = true;
+        }
+        final long lost = dropped.getAndSet(0);
+        if (0 < lost) {
+            LOG.error("Export dropped " + lost + " refreshes which did not fit into the queues.");
+        }
+    }
+
+    private boolean send(String body) {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url.get()))
+            .timeout(REQUEST_TIMEOUT)
+            .header("Content-Type", "text/plain; charset=utf-8");
+        token.ifPresent(t -> request.header("Authorization", "Token " + t));
+
+        // Batches and replayed spool files compress very well, as the lines mostly differ in their values.
+        final byte[] bytes = body.getBytes(UTF_8);
+        if (compression.isWorthCompressing(bytes)) {
+            request.header("Content-Encoding", HeatpumpDataCompression.GZIP).POST(HttpRequest.BodyPublishers.ofByteArray(compression.gzip(bytes)));
+        }
+        else {
+            request.POST(HttpRequest.BodyPublishers.ofByteArray(bytes));
+        }
+
+        try {
+            final HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            final int status = response.statusCode();
+            if (status / 100 == 2) {
+                if (sinkDown) {
+                    LOG.info("Export sink is back.");
+                }
+                sinkDown = false;
+                retryDelay = interval;
+                return true;
+            }
+            if (status / 100 == 4 && status != 429) {
+                // Sending the same lines again would not help, so they are dropped.
+                LOG.error("Export sink rejected " + body.length() + " characters with status " + status + ": " + response.body());
+                return true;
+            }
+            markSinkDown("status " + status);
+        }
+        catch (IOException e) {
+            markSinkDown(e.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            markSinkDown("interrupted");
+        }
+        return false;
+    }
+
+    private void markSinkDown(String reason) {
+        if (!sinkDown) {
+            LOG.warn("Export sink not reachable (" + reason + "), spooling to " + spoolDirectory + ".");
+        }
+        sinkDown = true;
+        nextAttempt = System.currentTimeMillis() + retryDelay.toMillis();
+        retryDelay = retryDelay.multipliedBy(2).compareTo(MAX_RETRY_DELAY) < 0 ? retryDelay.multipliedBy(2) : MAX_RETRY_DELAY;
+    }
+
+    // ---- Spool
+
+    private void spool(String body) {
+        try {
+            if (currentSpoolFile == null || SPOOL_FILE_SIZE <= Files.size(currentSpoolFile)) {
+                deleteOldestSpoolFiles();
+                currentSpoolFile = nextSpoolFile();
+            }
+            Files.writeString(currentSpoolFile, body, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        catch (IOException e) {
+            LOG.error("Not able to spool " + body.length() + " characters: " + e.getMessage());
+        }
+    }
+
+    // Named by the current time, but always after the newest file, so the order holds even if several are started within a millisecond.
+    private Path nextSpoolFile() {
+        long name = System.currentTimeMillis();
+        final List<Path> files = spoolFiles();
+        if (!files.isEmpty()) {
+            final String newest = files.getLast().getFileName().toString();
+            name = Math.max(name, Long.parseLong(newest.substring(0, newest.length() - SPOOL_SUFFIX.length())) + 1);
+        }
+        return spoolDirectory.resolve(String.format("%019d%s", name, SPOOL_SUFFIX));
+    }
+
+    // Each spool file is sent as one large request, oldest first; we stop at the first failure and try again later.
+    private void replaySpool() {
+        overflowSpooled = false;
+        for (Path file : spoolFiles()) {
+            // Replaying can take a while, so the overflow is kept from filling up in between.
+            spoolOverflow();
+            try {
+                // Lines spooled after this file is read go to the next one, so none get lost when it is deleted.
+                if (file.equals(currentSpoolFile)) {
+                    currentSpoolFile = null;
+                }
+                final String body = Files.readString(file, UTF_8);
+                if (!send(body)) {
+                    return;
+                }
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e) {
+                LOG.error("Not able to replay spool file " + file + ": " + e.getMessage());
+                return;
+            }
+        }
+        sinkDown = false;
+    }
+
+    private void deleteOldestSpoolFiles() throws IOException {
+        final List<Path> files = spoolFiles();
+        for (int i = 0; i < files.size() - MAX_SPOOL_FILES + 1; i++) {
+            LOG.warn("Spool is full, deleting " + files.get(i));
+            Files.delete(files.get(i));
+        }
+    }
+
+    private List<Path> spoolFiles() {
+        try (Stream<Path> list = Files.list(spoolDirectory)) {
+            // The names are zero padded timestamps, so they sort chronologically.
+            return list.filter(p -> p.getFileName().toString().endsWith(SPOOL_SUFFIX)).sorted().toList();
+        }
+        catch (IOException e) {
+            LOG.error("Not able to list spool " + spoolDirectory + ": " + e.getMessage());
+            return List.of();
+        }
+    }
+
+}
@@ -0,0 +1,398 @@
+package ch.retorte.heatpump;
+
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Singleton;
+import jakarta.interceptor.Interceptor;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Singleton
+public class HeatpumpDataHistory {
+
+    // ---- Statics
+
+    private static final Logger LOG = Logger.getLogger(HeatpumpDataHistory.class);
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The rollup tiers (bucket width and number of buckets kept), from fine to coarse.
+    private static final long[] TIER_WIDTHS = { 60, 15 * 60, 60 * 60 };
+    private static final int[] TIER_CAPACITIES = { 6 * 60, 7 * 24 * 4, 31 * 24 };
+
+    private static final int DEFAULT_MAX_POINTS = 1000;
+
+
+    // ---- Fields
+
+    @ConfigProperty(name = "heatpump.history.retention")
+    Duration retention;
+
+    @ConfigProperty(name = "heatpump.history.resolution")
+    Duration resolution;
+
+    private int capacity;
+
+    // Each heat pump has its own history (and lock), so the refreshes of different pumps do not wait for each other.
+    private final Map<String, HeatpumpHistory> heatpumps = new ConcurrentHashMap<>();
+
+
+    // ---- Methods
+
+    // Runs first, as the store already restores values on startup.
+    void onStart(@Observes @Priority(Interceptor.Priority.PLATFORM_BEFORE) StartupEvent event) {
+        // Enough room per field to keep a value for every interval of the retention time.
+        capacity = (int) Math.max(1, retention.toSeconds() / Math.max(1, resolution.toSeconds()));
+        LOG.info("Keeping history of " + retention + " with up to " + capacity + " samples per field.");
+    }
+
+    void onRefresh(@Observes HeatpumpRefresh refresh) {
+        final HeatpumpHistory heatpump = heatpumpOf(refresh.heatpump().getId());
+        synchronized (heatpump) {
+            // Only changed values get recorded as raw samples, a value holds until the next sample of its field.
+            for (Item item : refresh.changedItems()) {
+                final FieldHistory field = heatpump.fieldOf(item);
+                if (field != null) {
+                    field.samples.add(refresh.timestamp(), item.getNumeric());
+                }
+            }
+
+            // The rollups on the other hand take every value, so the averages are not skewed by values which did not change.
+            for (Item item : refresh.leaves()) {
+                final FieldHistory field = heatpump.fieldOf(item);
+                if (field != null) {
+                    field.addToRollups(refresh.timestamp(), item.getNumeric(), 1);
+                }
+            }
+        }
+    }
+
+    // Takes a value from the persistent store. Only changes are stored, so the previous value of the field is fed into the rollups once per
+    // refresh interval until this one, as it would have been at runtime.
+    void restore(String heatpumpId, String key, long timestamp, double value) {
+        final int separatorIndex = key.lastIndexOf('.');
+        if (separatorIndex < 0) {
+            return;
+        }
+
+        final HeatpumpHistory heatpump = heatpumpOf(heatpumpId);
+        synchronized (heatpump) {
+            final FieldHistory field = heatpump.fieldOf(key.substring(0, separatorIndex), key.substring(separatorIndex + 1));
+            field.samples.add(timestamp, value);
+            field.holdRestoredUntil(timestamp, resolution.toSeconds());
+            field.restoredTimestamp = timestamp;
+            field.restoredValue = value;
+        }
+    }
+
+    // After the last value from the store: the restored values hold until now, when the refreshes take over.
+    void restoreCompleted() {
+        final long now = System.currentTimeMillis() / 1000;
+        for (HeatpumpHistory heatpump : heatpumps.values()) {
+            synchronized (heatpump) {
+                heatpump.fields.values().forEach(categoryFields -> categoryFields.values().forEach(field -> field.holdRestoredUntil(now, resolution.toSeconds())));
+            }
+        }
+    }
+
+    private HeatpumpHistory heatpumpOf(String heatpumpId) {
+        return heatpumps.computeIfAbsent(heatpumpId, id -> new HeatpumpHistory());
+    }
+
+    // Yields the samples of the field (e.g. 'temperature.flow') between 'from' and 'to' (epoch seconds, inclusive), or null if there is no such field.
+    // The last sample before 'from' is included too, as it holds the value at the start of the range.
+    public Series query(String heatpumpId, String key, long from, long to) {
+        final HeatpumpHistory heatpump = heatpumps.get(heatpumpId);
+        if (heatpump == null) {
+            return null;
+        }
+
+        synchronized (heatpump) {
+            final FieldHistory field = heatpump.fieldOf(key);
+            if (field == null) {
+                return null;
+            }
+
+            final long oldest = System.currentTimeMillis() / 1000 - retention.toSeconds();
+            return field.samples.copy(Math.max(from, oldest), to);
+        }
+    }
+
+    // Yields the aggregated buckets of the field between 'from' and 'to', from the finest tier which still covers the range with at most 'maxPoints' buckets.
+    public RollupSeries queryRollup(String heatpumpId, String key, long from, long to, Integer maxPoints) {
+        final HeatpumpHistory heatpump = heatpumps.get(heatpumpId);
+        if (heatpump == null) {
+            return null;
+        }
+
+        synchronized (heatpump) {
+            final FieldHistory field = heatpump.fieldOf(key);
+            if (field == null) {
+                return null;
+            }
+
+            final long now = System.currentTimeMillis() / 1000;
+            final long span = Math.max(0, Math.min(to, now) - from);
+            final int points = maxPoints != null && 0 < maxPoints ? maxPoints : DEFAULT_MAX_POINTS;
+
+            Rollup chosen = field.rollups[field.rollups.length - 1];
+            for (Rollup rollup : field.rollups) {
+                final boolean coversRange = now - rollup.width * rollup.capacity <= from;
+                if (coversRange && span / rollup.width <= points) {
+                    chosen = rollup;
+                    break;
+                }
+            }
+            return chosen.copy(from, to);
+        }
+    }
+
+
+    // ---- Inner classes
+
+    public record Series(long[] timestamps, double[] values) {}
+
+    public record RollupSeries(long width, long[] timestamps, double[] min, double[] max, double[] avg, double[] last) {}
+
+    // Category -> id -> history of the field; guarded by the heat pump history itself.
+    private class HeatpumpHistory {
+
+        private final Map<String, Map<String, FieldHistory>> fields = new HashMap<>();
+
+        FieldHistory fieldOf(Item item) {
+            if (!item.hasNumeric()) {
+                return null;
+            }
+            return fieldOf(item.getCategory(), item.getId());
+        }
+
+        FieldHistory fieldOf(String category, String id) {
+            final Map<String, FieldHistory> categoryFields = fields.computeIfAbsent(category, c -> new HashMap<>());
+            FieldHistory field = categoryFields.get(id);
+            if (field == null) {
+                field = new FieldHistory(capacity);
+                categoryFields.put(id, field);
+            }
+            return field;
+        }
+
+        FieldHistory fieldOf(String key) {
+            final int separatorIndex = key.lastIndexOf('.');
+            if (separatorIndex < 0) {
+                return null;
+            }
+
+            final Map<String, FieldHistory> categoryFields = fields.get(key.substring(0, separatorIndex));
+            return categoryFields != null ? categoryFields.get(key.substring(separatorIndex + 1)) : null;
+        }
+    }
+
+    private static class FieldHistory {
+
+        private final RingBuffer samples;
+        private final Rollup[] rollups = new Rollup[TIER_WIDTHS.length];
+
+        // The last value taken from the store, which is not in the rollups yet.
+        private long restoredTimestamp = Long.MIN_VALUE;
+        private double restoredValue;
+
+        FieldHistory(int capacity) {
+            samples = new RingBuffer(capacity);
+            for (int i = 0; i < TIER_WIDTHS.length; i++) {
+                rollups[i] = new Rollup(TIER_WIDTHS[i], TIER_CAPACITIES[i]);
+            }
+        }
+
+        void addToRollups(long timestamp, double value, int times) {
+            for (Rollup rollup : rollups) {
+                rollup.add(timestamp, value, times);
+            }
+        }
+
+        // Feeds the last restored value into the rollups as if it was sampled every interval from its timestamp until before the given one.
+        // Bucket by bucket, so a value which held for days is not added sample by sample.
+        void holdRestoredUntil(long until, long interval) {
+            if (restoredTimestamp == Long.MIN_VALUE) {
+                return;
+            }
+
+            final long step = Math.max(1, interval);
+            final long end = Math.max(until, restoredTimestamp + 1);
+            for (Rollup rollup : rollups) {
+                long timestamp = restoredTimestamp;
+                while (timestamp < end) {
+                    final long bucketEnd = timestamp - Math.floorMod(timestamp, rollup.width) + rollup.width;
+                    final long times = (Math.min(end, bucketEnd) - timestamp + step - 1) / step;
+                    rollup.add(timestamp, restoredValue, (int) times);
+                    timestamp += times * step;
+                }
+            }
+            restoredTimestamp = Long.MIN_VALUE;
+        }
+    }
+
+    // Fixed capacity ring of primitive samples. The arrays grow up to the capacity, then the oldest samples get overwritten.
+    static class RingBuffer {
+
+        private final int capacity;
+        private long[] timestamps = new long[0];
+        private double[] values = new double[0];
+        private int start = 0;
+        private int size = 0;
+
+        RingBuffer(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(long timestamp, double value) {
+            if (size == timestamps.length && timestamps.length < capacity) {
+                // We never overwrote anything before reaching the capacity, so the samples still start at index 0.
+                final int length = (int) Math.min(capacity, Math.max(INITIAL_CAPACITY, timestamps.length * 2L));
+                timestamps = Arrays.copyOf(timestamps, length);
+                values = Arrays.copyOf(values, length);
+            }
+
+            if (size < timestamps.length) {
+                final int index = (start + size) % timestamps.length;
+                timestamps[index] = timestamp;
+                values[index] = value;
+                size++;
+            }
+            else {
+                timestamps[start] = timestamp;
+                values[start] = value;
+                start = (start + 1) % timestamps.length;
+            }
+        }
+
+        Series copy(long from, long to) {
+            int first = 0;
+            while (first < size && timestamp(first) < from) {
+                first++;
+            }
+            if (0 < first && (first == size || from < timestamp(first))) {
+                first--;
+            }
+
+            int last = first;
+            while (last < size && timestamp(last) <= to) {
+                last++;
+            }
+
+            final int count = last - first;
+            final long[] resultTimestamps = new long[count];
+            final double[] resultValues = new double[count];
+            for (int i = 0; i < count; i++) {
+                final int index = (start + first + i) % timestamps.length;
+                resultTimestamps[i] = timestamps[index];
+                resultValues[i] = values[index];
+            }
+            return new Series(resultTimestamps, resultValues);
+        }
+
+        private long timestamp(int position) {
+            return timestamps[(start + position) % timestamps.length];
+        }
+    }
+
+    // Ring of aggregated buckets of a fixed width. Each value is added in constant time to the current bucket, raw samples are never rescanned.
+    static class Rollup {
+
+        private final long width;
+        private final int capacity;
+        private long[] starts = new long[0];
+        private double[] min = new double[0];
+        private double[] max = new double[0];
+        private double[] sum = new double[0];
+        private double[] last = new double[0];
+        private int[] count = new int[0];
+        private int start = 0;
+        private int size = 0;
+
+        Rollup(long width, int capacity) {
+            this.width = width;
+            this.capacity = capacity;
+        }
+
+        // Adds the value as the given number of samples.
+        void add(long timestamp, double value, int times) {
+            final long bucketStart = timestamp - Math.floorMod(timestamp, width);
+            if (0 < size) {
+                final int current = index(size - 1);
+                if (starts[current] == bucketStart) {
+                    min[current] = Math.min(min[current], value);
+                    max[current] = Math.max(max[current], value);
+                    sum[current] += value * times;
+                    last[current] = value;
+                    count[current] += times;
+                    return;
+                }
+            }
+
+            final int next = nextIndex();
+            starts[next] = bucketStart;
+            min[next] = value;
+            max[next] = value;
+            sum[next] = value * times;
+            last[next] = value;
+            count[next] = times;
+        }
+
+        private int nextIndex() {
+            if (size == starts.length && starts.length < capacity) {
+                // Like the sample ring, the buckets still start at index 0 as long as we are growing.
+                final int length = Math.min(capacity, Math.max(INITIAL_CAPACITY, starts.length * 2));
+                starts = Arrays.copyOf(starts, length);
+                min = Arrays.copyOf(min, length);
+                max = Arrays.copyOf(max, length);
+                sum = Arrays.copyOf(sum, length);
+                last = Arrays.copyOf(last, length);
+                count = Arrays.copyOf(count, length);
+            }
+
+            if (size < starts.length) {
+                size++;
+                return index(size - 1);
+            }
+
+            final int oldest = start;
+            start = (start + 1) % starts.length;
+            return oldest;
+        }
+
+        private int index(int position) {
+            return (start + position) % starts.length;
+        }
+
+        RollupSeries copy(long from, long to) {
+            int first = 0;
+            while (first < size && starts[index(first)] + width <= from) {
+                first++;
+            }
+            int last = first;
+            while (last < size && starts[index(last)] <= to) {
+                last++;
+            }
+
+            final int length = last - first;
+            final RollupSeries result = new RollupSeries(width, new long[length], new double[length], new double[length], new double[length], new double[length]);
+            for (int i = 0; i < length; i++) {
+                final int index = index(first + i);
+                result.timestamps()[i] = starts[index];
+                result.min()[i] = min[index];
+                result.max()[i] = max[index];
+                result.avg()[i] = sum[index] / count[index];
+                result.last()[i] = this.last[index];
+            }
+            return result;
+        }
+    }
+
+}
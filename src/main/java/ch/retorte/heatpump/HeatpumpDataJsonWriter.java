@@ -0,0 +1,309 @@
+package ch.retorte.heatpump;
+
+import jakarta.inject.Singleton;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+@Singleton
+public class HeatpumpDataJsonWriter {
+
+    // ---- Statics
+
+    // Sequence numbers start at 1, so all items changed after this one.
+    public static final long ALL = 0;
+
+    // The properties of an item which can be picked for projected documents, in the order they are written.
+    public static final List<String> PROPERTIES = List.of("category", "id", "name", "numeric", "textual", "unit");
+    public static final int ALL_PROPERTIES = (1 << PROPERTIES.size()) - 1;
+
+    private static final int CATEGORY = 1;
+    private static final int ID = 1 << 1;
+    private static final int NAME = 1 << 2;
+    private static final int NUMERIC = 1 << 3;
+    private static final int TEXTUAL = 1 << 4;
+    private static final int UNIT = 1 << 5;
+
+
+    // ---- Fields
+
+    @ConfigProperty(name = "version")
+    String version;
+
+    @ConfigProperty(name = "commit")
+    String commit;
+
+
+    // ---- Methods
+
+    // Renders every leaf which changed in the given refresh; the others are taken over from the previous refresh (if there is one for the same leaves).
+    public String[] renderLeaves(List<Item> leaves, long sequence, String[] previous, StringBuilder builder) {
+        final String[] result = new String[leaves.size()];
+        for (int i = 0; i < result.length; i++) {
+            final Item leaf = leaves.get(i);
+            result[i] = previous != null && leaf.getChangedSequence() != sequence ? previous[i] : renderLeaf(leaf, leaf.getCategory(), builder);
+        }
+        return result;
+    }
+
+    // Assembles the document (with all leaves which changed after the given sequence) from the rendered leaves, into the given builder.
+    public byte[] render(String[] renderedLeaves, long[] changedSequences, long timestamp, long sequence, long changedSince, StringBuilder builder) {
+        builder.setLength(0);
+
+        builder.append("{\"metadata\":{");
+        appendString(builder, "commit", commit).append(',');
+        appendString(builder, "version", version).append(',');
+        appendName(builder, "timestamp").append(timestamp).append(',');
+        appendName(builder, "sequence").append(sequence);
+        builder.append("},\"data\":[");
+        boolean first = true;
+        for (int i = 0; i < renderedLeaves.length; i++) {
+            if (changedSequences[i] <= changedSince) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            builder.append(renderedLeaves[i]);
+            first = false;
+        }
+        builder.append("]}");
+
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    // The properties to render as a bit set, from their names (e.g. 'id,numeric').
+    public static int propertiesOf(String names) {
+        int result = 0;
+        for (String name : names.split(",")) {
+            final int property = PROPERTIES.indexOf(name.trim());
+            if (property < 0) {
+                throw new IllegalArgumentException("Unknown property: " + name.trim());
+            }
+            result |= 1 << property;
+        }
+        return result;
+    }
+
+    // Renders a document with just the leaves at the given positions (if they changed after the given sequence), with just the given properties.
+    // Everything is taken from the snapshot, so nothing of the full document needs to be read.
+    public byte[] renderSelection(HeatpumpSnapshot snapshot, int[] positions, int properties, long changedSince, StringBuilder builder) {
+        builder.setLength(0);
+
+        builder.append("{\"metadata\":{");
+        appendString(builder, "commit", commit).append(',');
+        appendString(builder, "version", version).append(',');
+        appendName(builder, "timestamp").append(snapshot.timestamp()).append(',');
+        appendName(builder, "sequence").append(snapshot.sequence());
+        builder.append("},\"data\":[");
+        boolean first = true;
+        for (int position : positions) {
+            if (snapshot.changedSequences()[position] <= changedSince) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            appendProjection(builder, snapshot, position, properties);
+            first = false;
+        }
+        builder.append("]}");
+
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    private void appendProjection(StringBuilder builder, HeatpumpSnapshot snapshot, int position, int properties) {
+        final HeatpumpDataConverter.UnitInfo field = snapshot.leaves().get(position).getUnitInfo();
+        final String textual = snapshot.textuals()[position];
+        final int start = builder.length();
+        builder.append('{');
+        if ((properties & CATEGORY) != 0) {
+            appendString(builder, "category", field.category()).append(',');
+        }
+        if ((properties & ID) != 0) {
+            appendString(builder, "id", field.identifier()).append(',');
+        }
+        if ((properties & NAME) != 0) {
+            appendString(builder, "name", field.name()).append(',');
+        }
+        if ((properties & NUMERIC) != 0) {
+            appendNumber(builder, field.unit(), snapshot.numerics()[position]);
+        }
+        if ((properties & TEXTUAL) != 0 && textual != null) {
+            appendString(builder, "textual", textual).append(',');
+        }
+        if ((properties & UNIT) != 0) {
+            appendString(builder, "unit", field.unit().marker()).append(',');
+        }
+
+        // Drops the trailing comma, unless the object stayed empty.
+        if (start + 1 < builder.length()) {
+            builder.setLength(builder.length() - 1);
+        }
+        builder.append('}');
+    }
+
+    // Renders a single item object, as it appears in the data list of the document.
+    public String renderLeaf(Item item, String category, StringBuilder builder) {
+        builder.setLength(0);
+        appendLeaf(builder, item, category);
+        return builder.toString();
+    }
+
+    // Lists key, name and unit of the leaves by their position in the binary formats.
+    public byte[] renderSchema(HeatpumpSnapshot snapshot) {
+        final StringBuilder builder = new StringBuilder(64 + snapshot.leaves().size() * 96);
+        builder.append('{');
+        appendString(builder, "schema", snapshot.index().schema()).append(',');
+        appendName(builder, "fields").append('[');
+        for (int position = 0; position < snapshot.leaves().size(); position++) {
+            final HeatpumpDataConverter.UnitInfo field = snapshot.leaves().get(position).getUnitInfo();
+            if (0 < position) {
+                builder.append(',');
+            }
+            builder.append('{');
+            appendName(builder, "index").append(position).append(',');
+            appendString(builder, "category", field.category()).append(',');
+            appendString(builder, "id", field.identifier()).append(',');
+            appendString(builder, "name", field.name()).append(',');
+            appendString(builder, "unit", field.unit().marker());
+            builder.append('}');
+        }
+        builder.append("]}");
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    public byte[] renderHistory(String heatpumpId, String key, HeatpumpDataHistory.Series series) {
+        final StringBuilder builder = new StringBuilder(64 + series.timestamps().length * 24);
+        builder.append('{');
+        appendString(builder, "pump", heatpumpId).append(',');
+        appendString(builder, "id", key).append(',');
+        appendLongs(builder, "timestamps", series.timestamps()).append(',');
+        appendDoubles(builder, "values", series.values());
+        builder.append('}');
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    public byte[] renderRollup(String heatpumpId, String key, HeatpumpDataHistory.RollupSeries series) {
+        final StringBuilder builder = new StringBuilder(64 + series.timestamps().length * 64);
+        builder.append('{');
+        appendString(builder, "pump", heatpumpId).append(',');
+        appendString(builder, "id", key).append(',');
+        appendName(builder, "resolution").append(series.width()).append(',');
+        appendLongs(builder, "timestamps", series.timestamps()).append(',');
+        appendDoubles(builder, "min", series.min()).append(',');
+        appendDoubles(builder, "max", series.max()).append(',');
+        appendDoubles(builder, "avg", series.avg()).append(',');
+        appendDoubles(builder, "last", series.last());
+        builder.append('}');
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    private StringBuilder appendLongs(StringBuilder builder, String name, long[] values) {
+        appendName(builder, name).append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (0 < i) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.append(']');
+    }
+
+    private StringBuilder appendDoubles(StringBuilder builder, String name, double[] values) {
+        appendName(builder, name).append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (0 < i) {
+                builder.append(',');
+            }
+            appendDouble(builder, values[i]);
+        }
+        return builder.append(']');
+    }
+
+    private void appendDouble(StringBuilder builder, double value) {
+        if (!Double.isFinite(value)) {
+            builder.append("null");
+        }
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            // Integral values (e.g. of boolean or hour fields) are written without fraction.
+            builder.append((long) value);
+        }
+        else {
+            builder.append(value);
+        }
+    }
+
+    private void appendLeaf(StringBuilder builder, Item item, String category) {
+        // Same properties and order as the former JSON-B serialization of the item.
+        builder.append('{');
+        appendString(builder, "category", category).append(',');
+        appendString(builder, "id", item.getId()).append(',');
+        appendString(builder, "name", item.getName()).append(',');
+        appendNumber(builder, item.getUnitInfo().unit(), item.getNumeric());
+        if (item.getTextual() != null) {
+            appendString(builder, "textual", item.getTextual()).append(',');
+        }
+        appendString(builder, "unit", item.getUnit());
+        builder.append('}');
+    }
+
+    private void appendNumber(StringBuilder builder, HeatpumpDataConverter.Unit unit, double numeric) {
+        if (!Double.isFinite(numeric)) {
+            return;
+        }
+
+        // Integral units are written without fraction and decimal ones always with, as they were when stored boxed.
+        appendName(builder, "numeric");
+        if (unit.isIntegral()) {
+            builder.append((long) numeric);
+        }
+        else {
+            builder.append(numeric);
+        }
+        builder.append(',');
+    }
+
+    // The escaped member name, e.g. '"garage":', to key a document by.
+    public byte[] renderName(String name) {
+        return appendQuoted(new StringBuilder(name.length() + 3), name).append(':').toString().getBytes(UTF_8);
+    }
+
+    private StringBuilder appendName(StringBuilder builder, String name) {
+        return builder.append('"').append(name).append("\":");
+    }
+
+    private StringBuilder appendString(StringBuilder builder, String name, String value) {
+        appendName(builder, name);
+        if (value == null) {
+            return builder.append("null");
+        }
+        return appendQuoted(builder, value);
+    }
+
+    private StringBuilder appendQuoted(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"' -> builder.append("\\\"");
+                case '\\' -> builder.append("\\\\");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                case '\t' -> builder.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+        return builder.append('"');
+    }
+
+}
@@ -0,0 +1,263 @@
+package ch.retorte.heatpump;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Exposes the numeric values in the OpenMetrics text format, so they can be scraped directly.
+// There is one gauge family per unit marker; every sample carries the heat pump, category and id as labels.
+@Path("/metrics")
+@Singleton
+public class HeatpumpDataMetrics {
+
+    // ---- Statics
+
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final String NAME_PREFIX = "heatpump_";
+
+    // Unit marker -> family name and OpenMetrics unit (empty if the values have none).
+    private static final String[][] FAMILIES = {
+        { "mode", "mode", "" },
+        { "integer", "value", "" },
+        { "boolean", "state", "" },
+        { "%", "percent", "percent" },
+        { "°C", "temperature_celsius", "celsius" },
+        { "K", "temperature_difference_kelvin", "kelvin" },
+        { "Hz", "frequency_hertz", "hertz" },
+        { "s", "duration_seconds", "seconds" },
+        { "h", "duration_hours", "hours" },
+        { "bar", "pressure_bar", "bar" },
+        { "l/h", "flow_litres_per_hour", "litres_per_hour" },
+        { "kW", "power_kilowatts", "kilowatts" },
+        { "kWh", "energy_kilowatt_hours", "kilowatt_hours" },
+    };
+
+    private static final byte[][] FAMILY_HEADERS = new byte[FAMILIES.length][];
+    private static final Map<String, Integer> FAMILY_INDEXES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < FAMILIES.length; i++) {
+            final String name = NAME_PREFIX + FAMILIES[i][1];
+            final String unit = FAMILIES[i][2];
+            FAMILY_HEADERS[i] = ("# TYPE " + name + " gauge\n" + (unit.isEmpty() ? "" : "# UNIT " + name + " " + unit + "\n")).getBytes(UTF_8);
+            FAMILY_INDEXES.put(FAMILIES[i][0], i);
+        }
+    }
+
+    private static final byte[] REFRESH_HEADER = ("# TYPE " + NAME_PREFIX + "last_refresh_timestamp_seconds gauge\n# UNIT " + NAME_PREFIX + "last_refresh_timestamp_seconds seconds\n").getBytes(UTF_8);
+    private static final byte[] EOF = "# EOF\n".getBytes(UTF_8);
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+
+    // ---- Injects
+
+    @Inject
+    HeatpumpDataFetcher fetcher;
+
+
+    // ---- Fields
+
+    // All fields below are guarded by 'this'.
+
+    // Heat pump id -> the label prefixes of its numeric leaves, replaced whenever the item tree is rebuilt.
+    private final Map<String, Layout> layouts = new HashMap<>();
+
+    // The buffer is reused over scrapes.
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int length;
+
+
+    // ---- Methods
+
+    @GET
+    @Produces(CONTENT_TYPE)
+    public synchronized byte[] metrics() {
+        length = 0;
+
+        // Every heat pump is written from one snapshot, so its values are all of the same refresh.
+        final List<Heatpump> heatpumps = List.copyOf(fetcher.getHeatpumps());
+        final HeatpumpSnapshot[] snapshots = new HeatpumpSnapshot[heatpumps.size()];
+        final Layout[] pumpLayouts = new Layout[heatpumps.size()];
+        for (int p = 0; p < snapshots.length; p++) {
+            snapshots[p] = heatpumps.get(p).getSnapshot();
+            if (snapshots[p] != null) {
+                pumpLayouts[p] = layoutOf(heatpumps.get(p).getId(), snapshots[p]);
+            }
+        }
+
+        // All samples of a family have to be listed together, so we go through the heat pumps for every family.
+        for (int family = 0; family < FAMILIES.length; family++) {
+            boolean headerWritten = false;
+            for (int p = 0; p < snapshots.length; p++) {
+                final Layout layout = pumpLayouts[p];
+                if (layout == null) {
+                    continue;
+                }
+
+                final double[] numerics = snapshots[p].numerics();
+                final int[] positions = layout.positions[family];
+                final byte[][] prefixes = layout.prefixes[family];
+                for (int i = 0; i < positions.length; i++) {
+                    final double numeric = numerics[positions[i]];
+                    if (!Double.isFinite(numeric)) {
+                        continue;
+                    }
+
+                    if (!headerWritten) {
+                        write(FAMILY_HEADERS[family]);
+                        headerWritten = true;
+                    }
+                    write(prefixes[i]);
+                    writeNumber(numeric);
+                    writeByte('\n');
+                }
+            }
+        }
+
+        write(REFRESH_HEADER);
+        for (int p = 0; p < snapshots.length; p++) {
+            if (pumpLayouts[p] != null) {
+                write(pumpLayouts[p].refreshPrefix);
+                writeNumber(snapshots[p].timestamp());
+                writeByte('\n');
+            }
+        }
+        write(EOF);
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    // The leaves only get replaced on complete refreshes, in between only their values change.
+    private Layout layoutOf(String heatpumpId, HeatpumpSnapshot snapshot) {
+        Layout layout = layouts.get(heatpumpId);
+        if (layout == null || layout.leaves != snapshot.leaves()) {
+            layout = Layout.of(heatpumpId, snapshot.leaves());
+            layouts.put(heatpumpId, layout);
+        }
+        return layout;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeByte(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    // Writes the digits directly into the buffer. The values have at most a few decimals, so they are written as fixed point without going through a string.
+    private void writeNumber(double value) {
+        final double scaled = value * 1000;
+        if (Math.abs(scaled) < 1e15 && scaled == Math.rint(scaled)) {
+            long fixed = (long) scaled;
+            if (fixed < 0) {
+                writeByte('-');
+                fixed = -fixed;
+            }
+            writeDigits(fixed / 1000);
+
+            long fraction = fixed % 1000;
+            if (fraction != 0) {
+                writeByte('.');
+                int digits = 3;
+                while (fraction % 10 == 0) {
+                    fraction /= 10;
+                    digits--;
+                }
+                ensureCapacity(digits);
+                for (int i = digits - 1; 0 <= i; i--) {
+                    buffer[length + i] = (byte) ('0' + fraction % 10);
+                    fraction /= 10;
+                }
+                length += digits;
+            }
+        }
+        else {
+            write(Double.toString(value).getBytes(UTF_8));
+        }
+    }
+
+    private void writeDigits(long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = digits - 1; 0 <= i; i--) {
+            buffer[length + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (buffer.length < length + additional) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+
+    // ---- Inner classes
+
+    // The positions of the numeric leaves of a heat pump by family, each with its rendered 'name{labels} ' prefix.
+    private static class Layout {
+
+        private final List<Item> leaves;
+        private final int[][] positions = new int[FAMILIES.length][];
+        private final byte[][][] prefixes = new byte[FAMILIES.length][][];
+        private final byte[] refreshPrefix;
+
+        private Layout(String heatpumpId, List<Item> leaves) {
+            this.leaves = leaves;
+            refreshPrefix = (NAME_PREFIX + "last_refresh_timestamp_seconds{pump=\"" + escape(heatpumpId) + "\"} ").getBytes(UTF_8);
+        }
+
+        static Layout of(String heatpumpId, List<Item> leaves) {
+            final List<List<Integer>> positionsByFamily = new ArrayList<>();
+            for (int i = 0; i < FAMILIES.length; i++) {
+                positionsByFamily.add(new ArrayList<>());
+            }
+
+            // Leaves with the same name in a topic resolve to the same field. Their samples would have the same labels, which makes the whole scrape invalid,
+            // so only the first of them (in document order) is exposed.
+            final Set<String> keys = new HashSet<>();
+            for (int position = 0; position < leaves.size(); position++) {
+                final Item item = leaves.get(position);
+                final Integer family = FAMILY_INDEXES.get(item.getUnit());
+                if (family != null && keys.add(family + " " + item.getCategory() + "." + item.getId())) {
+                    positionsByFamily.get(family).add(position);
+                }
+            }
+
+            final Layout layout = new Layout(heatpumpId, leaves);
+            for (int family = 0; family < FAMILIES.length; family++) {
+                final List<Integer> familyPositions = positionsByFamily.get(family);
+                layout.positions[family] = familyPositions.stream().mapToInt(Integer::intValue).toArray();
+                layout.prefixes[family] = new byte[familyPositions.size()][];
+                for (int i = 0; i < familyPositions.size(); i++) {
+                    final Item item = leaves.get(familyPositions.get(i));
+                    layout.prefixes[family][i] = (NAME_PREFIX + FAMILIES[family][1]
+                        + "{pump=\"" + escape(heatpumpId)
+                        + "\",category=\"" + escape(item.getCategory())
+                        + "\",id=\"" + escape(item.getId()) + "\"} ").getBytes(UTF_8);
+                }
+            }
+            return layout;
+        }
+
+        private static String escape(String labelValue) {
+            return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+}
@@ -0,0 +1,358 @@
+package ch.retorte.heatpump;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+@Singleton
+public class HeatpumpDataParser {
+
+    // ---- Statics
+
+    private static final String ITEM_ELEMENT = "item";
+    private static final String NAME_ELEMENT = "name";
+    private static final String VALUE_ELEMENT = "value";
+    private static final String ID_ATTRIBUTE = "id";
+
+    // The factory is thread safe once configured, so we only create it once.
+    private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+    // There is usually just one layout per heat pump model, so this is only a guard against firmware updates piling them up.
+    private static final int MAX_LAYOUTS = 16;
+
+
+    // ---- Injects
+
+    @Inject
+    HeatpumpDataConverter dataConverter;
+
+
+    // ---- Fields
+
+    // Fingerprint of a content tree -> its resolved layout. Shared by all heat pumps, which parse concurrently.
+    private final Map<String, ContentLayout> layouts = new ConcurrentHashMap<>();
+
+
+    // ---- Methods
+
+    private static XMLInputFactory createInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    public String extractAddressFrom(CharSequence navigationXml) {
+        try {
+            final XMLStreamReader reader = open(navigationXml);
+            try {
+                // The address is the id of the first element below the 'Navigation' root.
+                int depth = 0;
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == START_ELEMENT) {
+                        depth++;
+                        if (depth == 2) {
+                            return reader.getAttributeValue(null, ID_ATTRIBUTE);
+                        }
+                    }
+                    else if (event == END_ELEMENT) {
+                        depth--;
+                    }
+                }
+                return null;
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Reads the leaves of a 'Content' frame. Only the node ids and values are taken from the frame, the fields come from the layout cached for its structure.
+    public Content extractContent(CharSequence contentXml) {
+        final ContentNodes nodes = new ContentNodes();
+        try {
+            final XMLStreamReader reader = open(contentXml);
+            try {
+                // Move to the 'Content' root, then collect its items.
+                reader.nextTag();
+                readItems(reader, -1, nodes);
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+
+        // The heat pump assigns new node ids in every session, but names and shape stay the same; these are what the fields are resolved from.
+        final String fingerprint = nodes.fingerprint(dataConverter);
+        ContentLayout layout = layouts.get(fingerprint);
+        if (layout == null) {
+            if (MAX_LAYOUTS <= layouts.size()) {
+                // Only one (arbitrary) layout goes, so the ones in use by the other heat pumps mostly stay.
+                final Iterator<String> victims = layouts.keySet().iterator();
+                if (victims.hasNext()) {
+                    victims.next();
+                    victims.remove();
+                }
+            }
+            // Heat pumps with the same tree which connect at the same time all end up with the same layout.
+            final ContentLayout resolved = resolve(nodes);
+            final ContentLayout existing = layouts.putIfAbsent(fingerprint, resolved);
+            layout = existing != null ? existing : resolved;
+        }
+
+        final int[] positions = layout.nodes();
+        final String[] nodeIds = new String[positions.length];
+        final String[] rawValues = new String[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            nodeIds[i] = nodes.ids.get(positions[i]);
+            rawValues[i] = nodes.values.get(positions[i]);
+        }
+        return new Content(layout, nodeIds, rawValues);
+    }
+
+    // Resolves every node in the context of its parent topic, so the same name can mean different fields in different topics.
+    private ContentLayout resolve(ContentNodes nodes) {
+        final HeatpumpDataConverter.UnitInfo[] topics = new HeatpumpDataConverter.UnitInfo[nodes.size()];
+        final List<HeatpumpDataConverter.UnitInfo> fields = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+
+        // Parents always come before their children, so their topic is known by then.
+        for (int i = 0; i < nodes.size(); i++) {
+            final int parent = nodes.parents.get(i);
+            final String name = nodes.names.get(i);
+            if (name == null || (0 <= parent && topics[parent] == null)) {
+                // Nodes without name, below unknown topics or below leaves are skipped.
+                continue;
+            }
+
+            final HeatpumpDataConverter.UnitInfo context = parent < 0 ? null : topics[parent];
+            final String rawValue = nodes.values.get(i);
+            if (rawValue == null) {
+                // If the item has no value it must be a title node, so the items within are its children.
+                topics[i] = dataConverter.getFor(context, name, "");
+            }
+            else {
+                final HeatpumpDataConverter.UnitInfo field = dataConverter.getFor(context, name, rawValue);
+                if (field != null) {
+                    fields.add(field);
+                    positions.add(i);
+                }
+            }
+        }
+        final HeatpumpDataConverter.UnitInfo[] layoutFields = fields.toArray(new HeatpumpDataConverter.UnitInfo[0]);
+        return new ContentLayout(layoutFields, positions.stream().mapToInt(Integer::intValue).toArray(), dataConverter.valueLookup(), FieldIndex.of(layoutFields));
+    }
+
+    public void extractValuesFrom(CharSequence valuesXml, BiConsumer<String, String> consumer) {
+        try {
+            final XMLStreamReader reader = open(valuesXml);
+            try {
+                // Every (node id, raw value) pair is handed out as soon as it is read, no tree is built.
+                String nodeId = null;
+                while (reader.hasNext()) {
+                    if (reader.next() == START_ELEMENT) {
+                        switch (reader.getLocalName()) {
+                            case ITEM_ELEMENT -> nodeId = reader.getAttributeValue(null, ID_ATTRIBUTE);
+                            case VALUE_ELEMENT -> {
+                                if (nodeId != null) {
+                                    consumer.accept(nodeId, readText(reader));
+                                }
+                            }
+                            default -> {}
+                        }
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private XMLStreamReader open(CharSequence xml) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(new CharSequenceReader(xml));
+    }
+
+    private void readItems(XMLStreamReader reader, int parent, ContentNodes nodes) throws XMLStreamException {
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                if (ITEM_ELEMENT.equals(reader.getLocalName())) {
+                    readItem(reader, parent, nodes);
+                }
+                else {
+                    skipElement(reader);
+                }
+            }
+            else if (event == END_ELEMENT) {
+                break;
+            }
+        }
+    }
+
+    private void readItem(XMLStreamReader reader, int parent, ContentNodes nodes) throws XMLStreamException {
+        final int node = nodes.add(parent, reader.getAttributeValue(null, ID_ATTRIBUTE));
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case NAME_ELEMENT -> nodes.names.set(node, readText(reader));
+                    case VALUE_ELEMENT -> nodes.values.set(node, readText(reader));
+                    case ITEM_ELEMENT -> readItem(reader, node, nodes);
+                    default -> skipElement(reader);
+                }
+            }
+            else if (event == END_ELEMENT) {
+                break;
+            }
+        }
+    }
+
+    // Reads the text of the current element (including nested elements) and leaves the reader on its end tag.
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        String text = "";
+        StringBuilder builder = null;
+        int depth = 1;
+        while (0 < depth) {
+            switch (reader.next()) {
+                case START_ELEMENT -> depth++;
+                case END_ELEMENT -> depth--;
+                case CHARACTERS, CDATA, SPACE -> {
+                    if (text.isEmpty()) {
+                        text = reader.getText();
+                    }
+                    else {
+                        if (builder == null) {
+                            builder = new StringBuilder(text);
+                        }
+                        builder.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                }
+                default -> {}
+            }
+        }
+        return builder != null ? builder.toString() : text;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (0 < depth) {
+            switch (reader.next()) {
+                case START_ELEMENT -> depth++;
+                case END_ELEMENT -> depth--;
+                default -> {}
+            }
+        }
+    }
+
+
+    // ---- Inner classes
+
+    // The fields of a content tree by leaf position, with the position of their node in the tree and an index to find them. Immutable and shared by the sessions of all heat pumps with this tree.
+    public record ContentLayout(HeatpumpDataConverter.UnitInfo[] fields, int[] nodes, HeatpumpDataConverter.ValueLookup valueLookup, FieldIndex index) {
+
+        static final ContentLayout EMPTY = new ContentLayout(new HeatpumpDataConverter.UnitInfo[0], new int[0], null, FieldIndex.of(new HeatpumpDataConverter.UnitInfo[0]));
+    }
+
+    // The leaves of one content frame: their layout plus the node ids and values of this session.
+    public record Content(ContentLayout layout, String[] nodeIds, String[] rawValues) {}
+
+    // The item nodes of a content frame in document order, as parallel lists.
+    private static class ContentNodes {
+
+        private final List<Integer> parents = new ArrayList<>();
+        private final List<String> ids = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+
+        int add(int parent, String id) {
+            parents.add(parent);
+            ids.add(id);
+            names.add(null);
+            values.add(null);
+            return parents.size() - 1;
+        }
+
+        int size() {
+            return parents.size();
+        }
+
+        // Names and shape of the tree, but neither ids nor values. A leaf is only marked as such, as values change from session to session;
+        // only for the names which are resolved by their value (e.g. 'HD' as switch or as sensor) the shape of the value is part of it.
+        String fingerprint(HeatpumpDataConverter dataConverter) {
+            final StringBuilder builder = new StringBuilder(size() * 24);
+            for (int i = 0; i < size(); i++) {
+                builder.append(parents.get(i)).append(' ').append(names.get(i));
+                final String value = values.get(i);
+                if (value != null) {
+                    builder.append(" =");
+                    final long shape = names.get(i) == null ? 0 : dataConverter.valueShapeOf(names.get(i), value);
+                    if (shape != 0) {
+                        builder.append(shape);
+                    }
+                }
+                builder.append('\n');
+            }
+            return builder.toString();
+        }
+    }
+
+    // Lets the parser read directly from the WebSocket receive buffer without copying it into a string first.
+    private static class CharSequenceReader extends Reader {
+
+        private final CharSequence sequence;
+        private int position = 0;
+
+        CharSequenceReader(CharSequence sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (sequence.length() <= position) {
+                return -1;
+            }
+
+            final int count = Math.min(length, sequence.length() - position);
+            if (sequence instanceof StringBuilder builder) {
+                builder.getChars(position, position + count, buffer, offset);
+            }
+            else {
+                for (int i = 0; i < count; i++) {
+                    buffer[offset + i] = sequence.charAt(position + i);
+                }
+            }
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // nop
+        }
+    }
+
+}
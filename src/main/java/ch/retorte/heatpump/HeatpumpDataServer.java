@@ -4,39 +4,85 @@ import io.quarkus.logging.Log;
 import io.quarkus.runtime.StartupEvent;
 import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAcceptableException;
+import jakarta.ws.rs.NotFoundException;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 @Path("/")
 public class HeatpumpDataServer {
 
+    // ---- Statics
+
+    private static final byte[] OPENING_BRACE = "{".getBytes(UTF_8);
+    private static final byte[] CLOSING_BRACE = "}".getBytes(UTF_8);
+    private static final byte[] COMMA = ",".getBytes(UTF_8);
+
+    // Names of the documents cached with a snapshot.
+    private static final String JSON = "json";
+    private static final String SCHEMA = "schema";
+
+    // Lower quality than JSON, so clients accepting anything keep getting JSON.
+    private static final String BINARY_CBOR = HeatpumpDataBinaryWriter.APPLICATION_CBOR + ";qs=0.5";
+    private static final String BINARY_MESSAGE_PACK = HeatpumpDataBinaryWriter.APPLICATION_MESSAGE_PACK + ";qs=0.5";
+    private static final String BINARY_PROTOBUF = HeatpumpDataBinaryWriter.APPLICATION_PROTOBUF + ";qs=0.5";
+
+
     // ---- Injects
 
     @Inject
     HeatpumpDataFetcher fetcher;
 
+    @Inject
+    HeatpumpDataHistory history;
 
-    // ---- Fields
+    @Inject
+    HeatpumpDataJsonWriter jsonWriter;
+
+    @Inject
+    HeatpumpDataBinaryWriter binaryWriter;
 
-    @ConfigProperty(name = "version")
-    String version;
+    @Inject
+    HeatpumpDataCompression compression;
+
+    @Inject
+    HeatpumpInstrumentation instrumentation;
 
-    @ConfigProperty(name = "commit")
-    String commit;
+
+    // ---- Fields
 
     @ConfigProperty(name = "heatpump.language")
     String heatpumpLanguage;
 
+    // Read as a list, like in the fetcher, as there may be several heat pumps.
     @ConfigProperty(name = "heatpump.address")
-    String heatpumpAddress;
+    List<String> heatpumpAddresses;
+
+    @ConfigProperty(name = "heatpump.long-poll.timeout")
+    Duration longPollTimeout;
 
 
     // ---- Methods
@@ -49,54 +95,255 @@ public class HeatpumpDataServer {
         if (heatpumpLanguage == null) {
             Log.error("Config property 'HEATPUMP_LANGUAGE' (e.g. 'de') is required");
         }
-        if (heatpumpAddress == null) {
+        if (heatpumpAddresses == null || heatpumpAddresses.isEmpty()) {
             Log.error("Config property 'HEATPUMP_ADDRESS' (e.g. '192.168.1.2') is required");
         }
     }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Object heatpumpData() {
-        final Map<String, Object> heatpumpData = new HashMap<>();
+    public CompletionStage<Response> heatpumpData(@QueryParam("after") Long after, @QueryParam("since") String since, @QueryParam("category") String category, @QueryParam("id") List<String> ids, @QueryParam("fields") String fields, @Context HttpHeaders headers, @Context Request request) {
+        return responseOf(fetcher.getDefaultHeatpump(), after, sinceOf(since), selectionOf(category, ids, fields), headers, request);
+    }
+
+    @GET
+    @Path("pumps/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletionStage<Response> heatpumpData(@PathParam("id") String id, @QueryParam("after") Long after, @QueryParam("since") String since, @QueryParam("category") String category, @QueryParam("id") List<String> ids, @QueryParam("fields") String fields, @Context HttpHeaders headers, @Context Request request) {
+        return responseOf(heatpumpOf(id), after, sinceOf(since), selectionOf(category, ids, fields), headers, request);
+    }
+
+    // The binary formats are only picked if the client asks for them, anything else (like '*/*') still gets JSON.
+    @GET
+    @Produces({BINARY_CBOR, BINARY_MESSAGE_PACK, BINARY_PROTOBUF})
+    public CompletionStage<Response> heatpumpBinaryData(@QueryParam("after") Long after, @QueryParam("since") String since, @QueryParam("category") String category, @QueryParam("id") List<String> ids, @QueryParam("fields") String fields, @Context HttpHeaders headers, @Context Request request) {
+        rejectSelection(since, category, ids, fields);
+        return binaryResponseOf(fetcher.getDefaultHeatpump(), after, formatOf(headers), headers, request);
+    }
+
+    @GET
+    @Path("pumps/{id}")
+    @Produces({BINARY_CBOR, BINARY_MESSAGE_PACK, BINARY_PROTOBUF})
+    public CompletionStage<Response> heatpumpBinaryData(@PathParam("id") String id, @QueryParam("after") Long after, @QueryParam("since") String since, @QueryParam("category") String category, @QueryParam("id") List<String> ids, @QueryParam("fields") String fields, @Context HttpHeaders headers, @Context Request request) {
+        rejectSelection(since, category, ids, fields);
+        return binaryResponseOf(heatpumpOf(id), after, formatOf(headers), headers, request);
+    }
+
+    // Lists the fields by their position in the binary formats; only changes if the heat pump sends another content tree.
+    @GET
+    @Path("schema")
+    @Produces(MediaType.APPLICATION_JSON)
+    public CompletionStage<Response> schema(@QueryParam("pump") String pumpId, @Context HttpHeaders headers) {
+        return heatpumpOf(pumpId).awaitSnapshot().thenApply(snapshot -> {
+            final byte[] schema = snapshot.encodings().computeIfAbsent(SCHEMA, name -> jsonWriter.renderSchema(snapshot));
+            return compression.ok(snapshot, SCHEMA, schema, headers).build();
+        });
+    }
 
-        while(!fetcher.hasData()) {
-            waitOneSecond();
+    @GET
+    @Path("pumps")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response fleetData(@Context HttpHeaders headers) {
+        // Just stitches the already rendered documents together, keyed by the heat pump id. Pumps without data yet are left out.
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.writeBytes(OPENING_BRACE);
+        boolean first = true;
+        for (Heatpump heatpump : fetcher.getHeatpumps()) {
+            final byte[] json = heatpump.getCurrentJson();
+            if (json == null) {
+                continue;
+            }
+            if (!first) {
+                result.writeBytes(COMMA);
+            }
+            result.writeBytes(jsonWriter.renderName(heatpump.getId()));
+            result.writeBytes(json);
+            first = false;
         }
+        result.writeBytes(CLOSING_BRACE);
+        return compression.ok(result.toByteArray(), headers).build();
+    }
 
-        heatpumpData.put("data", convertToFlatItemList(fetcher.getCurrentTopLevelItems()));
-        heatpumpData.put("metadata", metadata());
+    @GET
+    @Path("history")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response history(@QueryParam("id") String id, @QueryParam("from") Long from, @QueryParam("to") Long to, @QueryParam("pump") String pumpId, @Context HttpHeaders headers) {
+        if (id == null) {
+            throw new BadRequestException("Query parameter 'id' (e.g. 'temperature.flow') is required");
+        }
 
-        return heatpumpData;
+        final Heatpump heatpump = heatpumpOf(pumpId);
+        final HeatpumpDataHistory.Series series = history.query(heatpump.getId(), id, from != null ? from : 0, to != null ? to : Long.MAX_VALUE);
+        if (series == null) {
+            throw new NotFoundException("No history for: " + id);
+        }
+        return compression.ok(jsonWriter.renderHistory(heatpump.getId(), id, series), headers).build();
     }
 
-    private void waitOneSecond() {
+    @GET
+    @Path("rollup")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response rollup(@QueryParam("id") String id, @QueryParam("from") Long from, @QueryParam("to") Long to, @QueryParam("maxPoints") Integer maxPoints, @QueryParam("pump") String pumpId, @Context HttpHeaders headers) {
+        if (id == null) {
+            throw new BadRequestException("Query parameter 'id' (e.g. 'temperature.flow') is required");
+        }
+
+        final Heatpump heatpump = heatpumpOf(pumpId);
+        final HeatpumpDataHistory.RollupSeries series = history.queryRollup(heatpump.getId(), id, from != null ? from : 0, to != null ? to : Long.MAX_VALUE, maxPoints);
+        if (series == null) {
+            throw new NotFoundException("No history for: " + id);
+        }
+        return compression.ok(jsonWriter.renderRollup(heatpump.getId(), id, series), headers).build();
+    }
+
+    private Heatpump heatpumpOf(String id) {
+        if (id == null) {
+            return fetcher.getDefaultHeatpump();
+        }
+
+        final Heatpump heatpump = fetcher.getHeatpump(id);
+        if (heatpump == null) {
+            throw new NotFoundException("No heat pump with id: " + id);
+        }
+        return heatpump;
+    }
+
+    // Parsed before waiting for data, so bad parameters are answered right away. Without any of them the full document is served.
+    private Selection selectionOf(String category, List<String> ids, String fields) {
+        if (category == null && (ids == null || ids.isEmpty()) && fields == null) {
+            return null;
+        }
+
+        Set<String> keys = null;
+        if (ids != null && !ids.isEmpty()) {
+            // Ids may be repeated as well as separated by commas.
+            keys = new LinkedHashSet<>();
+            for (String id : ids) {
+                for (String key : id.split(",")) {
+                    if (!key.isBlank()) {
+                        keys.add(key.trim());
+                    }
+                }
+            }
+        }
+
         try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            // nop
+            final int properties = fields == null ? HeatpumpDataJsonWriter.ALL_PROPERTIES : HeatpumpDataJsonWriter.propertiesOf(fields);
+            return new Selection(category == null || category.isBlank() ? null : category.trim(), keys, properties);
+        }
+        catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage() + " (possible are " + String.join(",", HeatpumpDataJsonWriter.PROPERTIES) + ")");
         }
     }
 
-    private List<Item> convertToFlatItemList(List<Item> topLevelItems) {
-        List<Item> result = new ArrayList<>();
-        for (Item item : topLevelItems) {
-            if (item.isLeaf()) {
-                result.add(item);
+    // The binary formats address the fields by position, so they always carry the full document. Rather than silently ignoring a filter, it is refused.
+    private void rejectSelection(String since, String category, List<String> ids, String fields) {
+        if (since != null || category != null || (ids != null && !ids.isEmpty()) || fields != null) {
+            throw new BadRequestException("Query parameters 'since', 'category', 'id' and 'fields' are only supported for JSON");
+        }
+    }
+
+    // Either the ETag of the data the client has (e.g. 'lz3k9a-42', with or without quotes) or just its 'metadata.sequence'.
+    private Since sinceOf(String since) {
+        if (since == null) {
+            return null;
+        }
+
+        final String[] parts = since.replace("\"", "").trim().split("-");
+        try {
+            // Anything after the sequence (like the '-gz' of compressed responses) does not matter here.
+            return 1 < parts.length ? new Since(parts[0], Long.parseLong(parts[1])) : new Since(null, Long.parseLong(parts[0]));
+        }
+        catch (NumberFormatException e) {
+            throw new BadRequestException("Query parameter 'since' has to be an ETag (e.g. 'lz3k9a-42') or a sequence number");
+        }
+    }
+
+    private CompletionStage<Response> responseOf(Heatpump heatpump, Long after, Since since, Selection selection, HttpHeaders headers, Request request) {
+        return snapshotOf(heatpump, after).thenApply(snapshot -> {
+            final long start = System.nanoTime();
+            instrumentation.recordDataAge(snapshot.timestamp());
+
+            // Clients which already have this version only get a 304.
+            final EntityTag entityTag = compression.entityTag(snapshot.version(), headers);
+            final Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                instrumentation.recordServe(start);
+                return notModified.header(HttpHeaders.VARY, HttpHeaders.ACCEPT).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+            }
+
+            // A client with data from before a restart gets the full document, as the sequence started over.
+            final Long changedSince = since != null && heatpump.knowsChangesSince(snapshot, since.epoch(), since.sequence()) ? since.sequence() : null;
+
+            final Response.ResponseBuilder ok;
+            if (selection != null) {
+                // Only the selected leaves are looked up in the index and rendered, the full document is not touched.
+                final int[] positions = snapshot.index().select(selection.category(), selection.keys());
+                ok = compression.ok(jsonWriter.renderSelection(snapshot, positions, selection.properties(), changedSince == null ? HeatpumpDataJsonWriter.ALL : changedSince, new StringBuilder(128 + positions.length * 64)), headers);
+            }
+            else if (changedSince != null) {
+                ok = compression.ok(heatpump.getChangesSince(snapshot, changedSince).json(), headers);
             }
             else {
-                result.addAll(convertToFlatItemList(item.getChildren()));
+                // The full document is the same for everybody, so it is compressed only once per refresh.
+                ok = compression.ok(snapshot, JSON, snapshot.json(), headers);
+            }
+            // The same URL serves JSON and the binary formats, depending on the Accept header.
+            final Response response = ok.header(HttpHeaders.VARY, HttpHeaders.ACCEPT).tag(entityTag).build();
+            instrumentation.recordServe(start);
+            return response;
+        });
+    }
+
+    private CompletionStage<Response> binaryResponseOf(Heatpump heatpump, Long after, HeatpumpDataBinaryWriter.Format format, HttpHeaders headers, Request request) {
+        return snapshotOf(heatpump, after).thenApply(snapshot -> {
+            final long start = System.nanoTime();
+            instrumentation.recordDataAge(snapshot.timestamp());
+
+            // Every format is a representation of its own, so it needs a tag of its own as well.
+            final EntityTag entityTag = compression.entityTag(snapshot.version() + "-" + format.name().toLowerCase(Locale.ROOT), headers);
+            final Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                instrumentation.recordServe(start);
+                return notModified.header(HttpHeaders.VARY, HttpHeaders.ACCEPT).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+            }
+
+            final Response response = compression.ok(snapshot, format.name(), binaryWriter.render(snapshot, format), headers).type(format.mediaType()).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).tag(entityTag).build();
+            instrumentation.recordServe(start);
+            return response;
+        });
+    }
+
+    // The first of the accepted types (by preference) which is one of the binary formats.
+    private HeatpumpDataBinaryWriter.Format formatOf(HttpHeaders headers) {
+        for (MediaType mediaType : headers.getAcceptableMediaTypes()) {
+            final HeatpumpDataBinaryWriter.Format format = HeatpumpDataBinaryWriter.Format.of(mediaType);
+            if (format != null && !mediaType.isWildcardType() && !mediaType.isWildcardSubtype()) {
+                return format;
             }
         }
-        return result;
+        throw new NotAcceptableException();
     }
 
-    private Map<String, Object> metadata() {
-        final Map<String, Object> metadata = new HashMap<>();
-        metadata.put("version", version);
-        metadata.put("commit", commit);
-        metadata.put("timestamp", fetcher.getLastRefresh());
-        return metadata;
+    private CompletionStage<HeatpumpSnapshot> snapshotOf(Heatpump heatpump, Long after) {
+        if (after == null) {
+            // Before the first refresh the request is parked until there is data.
+            return heatpump.awaitSnapshot();
+        }
+
+        // Long poll: wait for a refresh newer than the clients timestamp, but answer with what we have after the timeout.
+        return heatpump.awaitSnapshotAfter(after)
+            .completeOnTimeout(null, longPollTimeout.toMillis(), MILLISECONDS)
+            .thenCompose(snapshot -> snapshot != null ? completedFuture(snapshot) : heatpump.awaitSnapshot());
     }
 
 
+    // ---- Inner classes
+
+    // Which leaves of a document are requested, and which of their properties; null members mean all.
+    private record Selection(String category, Set<String> keys, int properties) {}
+
+    // The epoch is null if the client only passed a sequence.
+    private record Since(String epoch, long sequence) {}
+
 }
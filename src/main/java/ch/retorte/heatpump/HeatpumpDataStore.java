@@ -0,0 +1,450 @@
+package ch.retorte.heatpump;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import jakarta.interceptor.Interceptor;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Optional append-only store of the numeric values on disk, so the history survives restarts.
+// Values are written as fixed size records (field index, timestamp, value, checksum) into memory-mapped segment files of fixed size.
+// The field indexes are resolved through a separate, equally append-only dictionary file.
+@Singleton
+public class HeatpumpDataStore {
+
+    // ---- Statics
+
+    private static final Logger LOG = Logger.getLogger(HeatpumpDataStore.class);
+
+    private static final int MAGIC = 0x48505331; // 'HPS1'
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 24;
+    private static final int CHECKSUM_OFFSET = 20;
+    private static final int SEGMENT_SIZE = HEADER_SIZE + RECORD_SIZE * 256 * 1024;
+
+    private static final int CLEAR_CHUNK_SIZE = 64 * 1024;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocate(CLEAR_CHUNK_SIZE).asReadOnlyBuffer();
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String FIELDS_FILE = "fields";
+    private static final char FIELD_SEPARATOR = '\t';
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long FORCE_INTERVAL_MILLIS = 10_000;
+    private static final long CLEANUP_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+
+    // ---- Injects
+
+    @Inject
+    HeatpumpDataHistory history;
+
+
+    // ---- Fields
+
+    @ConfigProperty(name = "heatpump.store.path")
+    Optional<String> storePath;
+
+    @ConfigProperty(name = "heatpump.store.retention")
+    Duration retention;
+
+    private Path directory;
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private Thread writer;
+    private volatile boolean running;
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Only written by the writer thread once it runs; the segment list is additionally guarded by 'this' and the fields only ever grow, for readers.
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Integer> fieldIndexes = new HashMap<>();
+    private final List<String[]> fields = new CopyOnWriteArrayList<>();
+    private FileChannel fieldsChannel;
+    private final CRC32C checksum = new CRC32C();
+    private boolean dirty;
+    private long lastForce;
+    private long nextCleanup;
+
+
+    // ---- Methods
+
+    // Runs before the heat pumps are started, so the restored values end up in the history before any new ones.
+    void onStart(@Observes @Priority(Interceptor.Priority.LIBRARY_BEFORE) StartupEvent event) {
+        if (storePath.isEmpty()) {
+            return;
+        }
+
+        try {
+            directory = Path.of(storePath.get());
+            Files.createDirectories(directory);
+            openFields();
+            openSegments();
+        }
+        catch (IOException e) {
+            LOG.error("Not able to open store at " + storePath.get() + ", values are not persisted: " + e.getMessage());
+            return;
+        }
+
+        final long from = System.currentTimeMillis() / 1000 - retention.toSeconds();
+        final int[] restored = { 0 };
+        read(from, Long.MAX_VALUE, (heatpumpId, key, timestamp, value) -> {
+            history.restore(heatpumpId, key, timestamp, value);
+            restored[0]++;
+        });
+        history.restoreCompleted();
+        LOG.info("Restored " + restored[0] + " values of " + segments.size() + " segments from store at " + directory + ".");
+
+        running = true;
+        writer = Thread.ofPlatform().name("heatpump-store").daemon().start(this::writeLoop);
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        if (writer == null) {
+            return;
+        }
+
+        running = false;
+        try {
+            writer.join(Duration.ofSeconds(5));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called on the WebSocket listener thread, so we only take a copy of the changed values and leave the rest to the writer thread.
+    void onRefresh(@Observes HeatpumpRefresh refresh) {
+        if (!running) {
+            return;
+        }
+
+        int count = 0;
+        for (Item item : refresh.changedItems()) {
+            if (item.hasNumeric()) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        final Item[] items = new Item[count];
+        final double[] values = new double[count];
+        int i = 0;
+        for (Item item : refresh.changedItems()) {
+            if (item.hasNumeric()) {
+                items[i] = item;
+                values[i++] = item.getNumeric();
+            }
+        }
+
+        if (!queue.offer(new Batch(refresh.heatpump().getId(), refresh.timestamp(), items, values))) {
+            // Rather lose values than slow down the heat pump session.
+            final long droppedSoFar = dropped.incrementAndGet();
+            if (droppedSoFar % 100 == 1) {
+                LOG.warn("Store is not keeping up, dropped " + droppedSoFar + " refreshes so far.");
+            }
+        }
+    }
+
+    // Hands the stored values between 'from' and 'to' (epoch seconds, inclusive) to the consumer, decoded right from the mapped segments.
+    public synchronized void read(long from, long to, SampleConsumer consumer) {
+        for (int s = 0; s < segments.size(); s++) {
+            final Segment segment = segments.get(s);
+            final boolean olderThanRange = s + 1 < segments.size() && segments.get(s + 1).firstTimestamp < from;
+            if (olderThanRange || to < segment.firstTimestamp) {
+                continue;
+            }
+
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            final int count = segment.count;
+            for (int r = segment.firstRecordAtOrAfter(from); r < count; r++) {
+                final int offset = HEADER_SIZE + r * RECORD_SIZE;
+                final long timestamp = buffer.getLong(offset + 4);
+                if (to < timestamp) {
+                    break;
+                }
+
+                final String[] field = fields.get(buffer.getInt(offset));
+                consumer.accept(field[0], field[1], timestamp, buffer.getDouble(offset + 12));
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (running || !queue.isEmpty()) {
+            try {
+                final Batch batch = queue.poll(1, TimeUnit.SECONDS);
+                if (batch != null) {
+                    write(batch);
+                }
+
+                final long now = System.currentTimeMillis();
+                if (dirty && FORCE_INTERVAL_MILLIS <= now - lastForce) {
+                    force(now);
+                }
+                if (nextCleanup <= now) {
+                    deleteExpiredSegments();
+                    nextCleanup = now + CLEANUP_INTERVAL_MILLIS;
+                }
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            catch (IOException | UncheckedIOException e) {
+                LOG.error("Not able to write to store: " + e.getMessage());
+            }
+        }
+        force(System.currentTimeMillis());
+
+        try {
+            fieldsChannel.close();
+        }
+        catch (IOException e) {
+            LOG.warn("Not able to close fields file: " + e.getMessage());
+        }
+    }
+
+    private void write(Batch batch) throws IOException {
+        for (int i = 0; i < batch.items.length; i++) {
+            final Item item = batch.items[i];
+            final int field = fieldIndexOf(batch.heatpumpId, item.getCategory() + "." + item.getId());
+
+            Segment segment = segments.isEmpty() ? null : segments.getLast();
+            if (segment == null || segment.isFull()) {
+                segment = rotate(batch.timestamp);
+            }
+            segment.append(field, batch.timestamp, batch.values[i], checksum);
+        }
+        dirty = true;
+    }
+
+    private void force(long now) {
+        if (!segments.isEmpty()) {
+            segments.getLast().buffer.force();
+        }
+        dirty = false;
+        lastForce = now;
+    }
+
+    // ---- Fields dictionary
+
+    private void openFields() throws IOException {
+        final Path file = directory.resolve(FIELDS_FILE);
+        if (Files.exists(file)) {
+            final String content = Files.readString(file, UTF_8);
+
+            // A line without its line break was cut off by a crash; as the line got written before any record using it, it can simply be dropped.
+            final int end = content.lastIndexOf('\n') + 1;
+            for (String line : content.substring(0, end).split("\n")) {
+                final String[] parts = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+                if (parts.length == 2) {
+                    addField(parts[0], parts[1]);
+                }
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(content.substring(0, end).getBytes(UTF_8).length);
+            }
+        }
+        fieldsChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private int fieldIndexOf(String heatpumpId, String key) throws IOException {
+        final Integer index = fieldIndexes.get(heatpumpId + FIELD_SEPARATOR + key);
+        if (index != null) {
+            return index;
+        }
+
+        fieldsChannel.write(ByteBuffer.wrap((heatpumpId + FIELD_SEPARATOR + key + "\n").getBytes(UTF_8)));
+        fieldsChannel.force(false);
+        return addField(heatpumpId, key);
+    }
+
+    private int addField(String heatpumpId, String key) {
+        final int index = fields.size();
+        fields.add(new String[] { heatpumpId, key });
+        fieldIndexes.put(heatpumpId + FIELD_SEPARATOR + key, index);
+        return index;
+    }
+
+    // ---- Segments
+
+    private void openSegments() throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            // The names are zero padded timestamps, so they sort chronologically.
+            files = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+
+        for (Path file : files) {
+            final Segment segment = Segment.open(file, fields.size());
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+    }
+
+    private synchronized Segment rotate(long timestamp) throws IOException {
+        final Segment segment = Segment.create(directory.resolve(String.format("%019d%s", timestamp, SEGMENT_SUFFIX)), timestamp);
+        if (!segments.isEmpty()) {
+            segments.getLast().buffer.force();
+        }
+        segments.add(segment);
+        return segment;
+    }
+
+    // A segment can go once the next one starts before the retention limit, as all of its values are older.
+    private synchronized void deleteExpiredSegments() throws IOException {
+        final long limit = System.currentTimeMillis() / 1000 - retention.toSeconds();
+        while (1 < segments.size() && segments.get(1).firstTimestamp < limit) {
+            final Segment expired = segments.removeFirst();
+            Files.deleteIfExists(expired.file);
+            LOG.debug("Deleted expired segment " + expired.file);
+        }
+    }
+
+
+    // ---- Inner classes
+
+    @FunctionalInterface
+    public interface SampleConsumer {
+        void accept(String heatpumpId, String key, long timestamp, double value);
+    }
+
+    private record Batch(String heatpumpId, long timestamp, Item[] items, double[] values) {}
+
+    private static class Segment {
+
+        private final Path file;
+        private final long firstTimestamp;
+        private final MappedByteBuffer buffer;
+        private volatile int count;
+
+        private Segment(Path file, long firstTimestamp, MappedByteBuffer buffer, int count) {
+            this.file = file;
+            this.firstTimestamp = firstTimestamp;
+            this.buffer = buffer;
+            this.count = count;
+        }
+
+        static Segment create(Path file, long firstTimestamp) throws IOException {
+            final MappedByteBuffer buffer = map(file);
+            buffer.putInt(0, MAGIC);
+            return new Segment(file, firstTimestamp, buffer, 0);
+        }
+
+        // Recovers the segment by taking all records up to the first one which is empty, torn or otherwise broken.
+        static Segment open(Path file, int fieldCount) throws IOException {
+            final MappedByteBuffer buffer = map(file);
+            if (buffer.getInt(0) != MAGIC) {
+                LOG.warn("Ignoring invalid segment " + file);
+                return null;
+            }
+
+            final CRC32C checksum = new CRC32C();
+            int count = 0;
+            while (count < capacity() && isValid(buffer, HEADER_SIZE + count * RECORD_SIZE, fieldCount, checksum)) {
+                count++;
+            }
+
+            // The pages of a mapped file can reach the disk in any order, so there may still be older records after the recovered ones.
+            // Once new records are appended, those would look like a valid continuation after the next crash, so they are cleared now.
+            clear(buffer, HEADER_SIZE + count * RECORD_SIZE);
+            return new Segment(file, Long.parseLong(file.getFileName().toString().replace(SEGMENT_SUFFIX, "")), buffer, count);
+        }
+
+        private static MappedByteBuffer map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping stays valid after closing the channel; mapping beyond the end grows the file to the full segment size.
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+        }
+
+        // Only the chunks which are not zero already are written, so a clean tail costs a read.
+        private static void clear(MappedByteBuffer buffer, int from) {
+            boolean cleared = false;
+            for (int offset = from; offset < SEGMENT_SIZE; offset += CLEAR_CHUNK_SIZE) {
+                final int length = Math.min(CLEAR_CHUNK_SIZE, SEGMENT_SIZE - offset);
+                final ByteBuffer zeros = ZEROS.slice(0, length);
+                if (buffer.slice(offset, length).mismatch(zeros) != -1) {
+                    buffer.put(offset, zeros, 0, length);
+                    cleared = true;
+                }
+            }
+            if (cleared) {
+                buffer.force(from, SEGMENT_SIZE - from);
+            }
+        }
+
+        private static int capacity() {
+            return (SEGMENT_SIZE - HEADER_SIZE) / RECORD_SIZE;
+        }
+
+        private static boolean isValid(ByteBuffer buffer, int offset, int fieldCount, CRC32C checksum) {
+            final int field = buffer.getInt(offset);
+            return 0 <= field && field < fieldCount && buffer.getInt(offset + CHECKSUM_OFFSET) == checksumOf(buffer, offset, checksum);
+        }
+
+        private static int checksumOf(ByteBuffer buffer, int offset, CRC32C checksum) {
+            checksum.reset();
+            checksum.update(buffer.slice(offset, CHECKSUM_OFFSET));
+            return (int) checksum.getValue();
+        }
+
+        boolean isFull() {
+            return count == capacity();
+        }
+
+        void append(int field, long timestamp, double value, CRC32C checksum) {
+            final int offset = HEADER_SIZE + count * RECORD_SIZE;
+            buffer.putInt(offset, field);
+            buffer.putLong(offset + 4, timestamp);
+            buffer.putDouble(offset + 12, value);
+            buffer.putInt(offset + CHECKSUM_OFFSET, checksumOf(buffer, offset, checksum));
+
+            // Readers only look at records below the count, so it is raised once the record is complete.
+            count++;
+        }
+
+        // Records are appended in time order, so a binary search finds the start of a range.
+        int firstRecordAtOrAfter(long timestamp) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (buffer.getLong(HEADER_SIZE + middle * RECORD_SIZE + 4) < timestamp) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+}
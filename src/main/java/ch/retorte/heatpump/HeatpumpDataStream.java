@@ -0,0 +1,230 @@
+package ch.retorte.heatpump;
+
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseBroadcaster;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.jboss.logging.Logger;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+@Path("/stream")
+@Singleton
+public class HeatpumpDataStream {
+
+    // ---- Statics
+
+    private static final Logger LOG = Logger.getLogger(HeatpumpDataStream.class);
+
+    private static final String SNAPSHOT_EVENT = "snapshot";
+    private static final String UPDATE_EVENT = "update";
+    private static final String WILDCARD = "*";
+
+
+    // ---- Injects
+
+    @Inject
+    HeatpumpDataFetcher fetcher;
+
+    @Inject
+    HeatpumpDataJsonWriter jsonWriter;
+
+    @Inject
+    HeatpumpConnectionManager connections;
+
+    // Stateless, so the one instance serves for all streams and for sending outside of requests.
+    @Context
+    Sse sse;
+
+
+    // ---- Fields
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+
+    // ---- Methods
+
+    // Sends the (filtered) current data as 'snapshot' event, followed by an 'update' event with only the changed items on every refresh.
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void stream(@QueryParam("pump") String pumpId, @QueryParam("filter") List<String> filters, @Context SseEventSink sink) {
+        final Heatpump heatpump = pumpId == null ? fetcher.getDefaultHeatpump() : fetcher.getHeatpump(pumpId);
+        if (heatpump == null) {
+            throw new NotFoundException("No heat pump with id: " + pumpId);
+        }
+
+        // The request thread returns right away, the sink is kept open and only written to on refreshes.
+        final Channel channel = channelOf(heatpump);
+        synchronized (channel) {
+            final Subscribers subscribers = channel.subscribersFor(normalize(filters));
+            subscribers.sinks.add(sink);
+
+            // Queued behind the updates already under way, so the snapshot is followed by exactly the updates after it.
+            final List<String> current = channel.itemsByKey.isEmpty() ? List.of() : subscribers.matching(channel.itemsByKey);
+            final long sequence = channel.sequence;
+            channel.enqueue(() -> {
+                if (!current.isEmpty()) {
+                    send(sink, eventOf(SNAPSHOT_EVENT, sequence, current));
+                }
+                subscribers.broadcaster.register(sink);
+            });
+        }
+    }
+
+    // Only renders the changed items on the refresh thread, the sending is left to the executor. Each heat pump has its own lock.
+    void onRefresh(@Observes HeatpumpRefresh refresh) {
+        final Channel channel = channelOf(refresh.heatpump());
+        synchronized (channel) {
+            if (refresh.complete()) {
+                channel.itemsByKey.clear();
+            }
+
+            // Each changed item is rendered once and then shared by all subscribers.
+            final Map<String, String> changed = new LinkedHashMap<>();
+            for (Item item : refresh.changedItems()) {
+                final String category = item.getCategory();
+                final String rendered = jsonWriter.renderLeaf(item, category, channel.builder);
+                final String key = category + "." + item.getId();
+                changed.put(key, rendered);
+                channel.itemsByKey.put(key, rendered);
+            }
+            channel.sequence = refresh.sequence();
+
+            channel.subscribersByFilter.values().removeIf(Subscribers::closeIfEmpty);
+            if (changed.isEmpty() || channel.subscribersByFilter.isEmpty()) {
+                return;
+            }
+
+            final String eventName = refresh.complete() ? SNAPSHOT_EVENT : UPDATE_EVENT;
+            final List<Subscribers> all = List.copyOf(channel.subscribersByFilter.values());
+            channel.enqueue(() -> all.forEach(subscribers -> subscribers.broadcast(eventName, refresh.sequence(), changed)));
+        }
+    }
+
+    private Channel channelOf(Heatpump heatpump) {
+        return channels.computeIfAbsent(heatpump.getId(), id -> new Channel());
+    }
+
+    private OutboundSseEvent eventOf(String name, long sequence, List<String> renderedItems) {
+        return sse.newEventBuilder()
+            .name(name)
+            .id(String.valueOf(sequence))
+            .data(String.class, "[" + String.join(",", renderedItems) + "]")
+            .build();
+    }
+
+    private void send(SseEventSink sink, OutboundSseEvent event) {
+        sink.send(event).exceptionally(e -> {
+            LOG.debug("Closing event stream: " + e.getMessage());
+            sink.close();
+            return null;
+        });
+    }
+
+    private String normalize(List<String> filters) {
+        if (filters == null) {
+            return "";
+        }
+        return filters.stream()
+            .flatMap(f -> Arrays.stream(f.split(",")))
+            .map(String::trim)
+            .filter(f -> !f.isEmpty())
+            .sorted()
+            .distinct()
+            .collect(Collectors.joining(","));
+    }
+
+
+    // ---- Inner classes
+
+    // The streams of one heat pump. All fields are guarded by the channel itself.
+    private class Channel {
+
+        private final Map<String, String> itemsByKey = new LinkedHashMap<>();
+        private final Map<String, Subscribers> subscribersByFilter = new HashMap<>();
+        private final StringBuilder builder = new StringBuilder();
+        private long sequence;
+
+        // Events are sent one after the other in the order of the refreshes, but never on the refresh thread, so a slow client can not hold up the heat pump.
+        private CompletableFuture<Void> sending = CompletableFuture.completedFuture(null);
+
+        Subscribers subscribersFor(String filter) {
+            return subscribersByFilter.computeIfAbsent(filter, f -> new Subscribers(f, sse.newBroadcaster()));
+        }
+
+        void enqueue(Runnable task) {
+            sending = sending.thenRunAsync(task, connections.executor()).exceptionally(e -> {
+                LOG.error("Unable to send events: " + e.getMessage());
+                return null;
+            });
+        }
+    }
+
+    private class Subscribers {
+
+        private final Pattern pattern;
+        private final SseBroadcaster broadcaster;
+        private final Set<SseEventSink> sinks = ConcurrentHashMap.newKeySet();
+
+        Subscribers(String filter, SseBroadcaster broadcaster) {
+            this.pattern = filter.isEmpty() ? null : patternOf(filter);
+            this.broadcaster = broadcaster;
+            broadcaster.onClose(sinks::remove);
+            broadcaster.onError((sink, e) -> {
+                LOG.debug("Closing event stream: " + e.getMessage());
+                sinks.remove(sink);
+                sink.close();
+            });
+        }
+
+        boolean closeIfEmpty() {
+            sinks.removeIf(SseEventSink::isClosed);
+            if (!sinks.isEmpty()) {
+                return false;
+            }
+            broadcaster.close();
+            return true;
+        }
+
+        // Subscribers with the same filter get the very same event.
+        void broadcast(String eventName, long sequence, Map<String, String> changed) {
+            final List<String> matching = matching(changed);
+            if (!matching.isEmpty()) {
+                broadcaster.broadcast(eventOf(eventName, sequence, matching));
+            }
+        }
+
+        // Filters are 'category.id' keys where '*' matches anything, e.g. 'temperature.*' or 'output.compressor'.
+        private static Pattern patternOf(String filter) {
+            final String regex = Arrays.stream(filter.split(","))
+                .map(f -> Arrays.stream(f.split(Pattern.quote(WILDCARD), -1)).map(Pattern::quote).collect(Collectors.joining(".*")))
+                .collect(Collectors.joining("|"));
+            return Pattern.compile(regex);
+        }
+
+        List<String> matching(Map<String, String> itemsByKey) {
+            final List<String> result = new ArrayList<>();
+            itemsByKey.forEach((key, rendered) -> {
+                if (pattern == null || pattern.matcher(key).matches()) {
+                    result.add(rendered);
+                }
+            });
+            return result;
+        }
+    }
+
+}
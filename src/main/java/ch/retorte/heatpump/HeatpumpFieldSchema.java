@@ -0,0 +1,310 @@
+package ch.retorte.heatpump;
+
+import ch.retorte.heatpump.HeatpumpDataConverter.Unit;
+import ch.retorte.heatpump.HeatpumpDataConverter.UnitInfo;
+import ch.retorte.heatpump.HeatpumpDataConverter.ValueLookup;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static ch.retorte.heatpump.HeatpumpDataConverter.Unit.*;
+
+// The compiled field schema of one language: the candidates by localized name, for the top level and below every topic (by the index of the topic).
+// The schemas of the bundled languages are built by the static initializer. The native image runs it at build time (see application.properties),
+// so they are part of the image heap and a freshly started process does not read a bundle or compile a pattern before connecting.
+public final class HeatpumpFieldSchema {
+
+    // ---- Statics
+
+    public static final String KEY_TRANSLATION_FILE = "keyTranslation";
+
+    // The languages with a translation bundle in the resources; any other is built on startup (and falls back to the default bundle).
+    static final List<String> BUNDLED_LANGUAGES = List.of("de");
+
+    private static final int ROOT = -1;
+
+    private static final Map<String, HeatpumpFieldSchema> PREBUILT = prebuild();
+
+
+    // ---- Fields
+
+    private final Map<String, UnitInfo[]> rootFields;
+    private final List<Map<String, UnitInfo[]>> childFields;
+    private final int fieldCount;
+    private final ValueLookup valueLookup;
+
+    // Localized name -> the value patterns of its candidates, only for the names which are told apart by their value somewhere in the tree.
+    private final Map<String, Pattern[]> valuePatternsByName;
+
+
+    // ---- Constructor
+
+    private HeatpumpFieldSchema(Map<String, UnitInfo[]> rootFields, List<Map<String, UnitInfo[]>> childFields, ValueLookup valueLookup) {
+        this.rootFields = rootFields;
+        this.childFields = childFields;
+        this.fieldCount = childFields.size();
+        this.valueLookup = valueLookup;
+        this.valuePatternsByName = valuePatternsOf(rootFields, childFields);
+    }
+
+
+    // ---- Methods
+
+    private static Map<String, HeatpumpFieldSchema> prebuild() {
+        final Map<String, HeatpumpFieldSchema> result = new HashMap<>();
+        for (String language : BUNDLED_LANGUAGES) {
+            result.put(language, build(language));
+        }
+        return Map.copyOf(result);
+    }
+
+    public static HeatpumpFieldSchema forLanguage(String languageTag) {
+        final HeatpumpFieldSchema prebuilt = PREBUILT.get(languageTag.toLowerCase(Locale.ROOT));
+        return prebuilt != null ? prebuilt : build(languageTag);
+    }
+
+    private static HeatpumpFieldSchema build(String languageTag) {
+        return new Builder(ResourceBundle.getBundle(KEY_TRANSLATION_FILE, Locale.forLanguageTag(languageTag))).build();
+    }
+
+    // Resolves a field by its position in the tree, i.e. by the topic it is in (null for the top level) and its localized name.
+    public UnitInfo getFor(UnitInfo parent, String fieldIdentifier, String fieldValue) {
+        final UnitInfo[] unitInfos = (parent != null ? childFields.get(parent.index()) : rootFields).get(fieldIdentifier);
+        if (unitInfos == null) {
+            return null;
+        }
+        else if (unitInfos.length == 1) {
+            return unitInfos[0];
+        }
+        else {
+            // Some topics contain the same name twice (e.g. 'HD' once as switch and once as sensor), these are told apart by their value.
+            for (UnitInfo unitInfo : unitInfos) {
+                if (unitInfo.valuePattern() != null && unitInfo.valuePattern().matcher(fieldValue).matches()) {
+                    return unitInfo;
+                }
+            }
+
+            // If there is no match with the regex we just yield the first unit.
+            return unitInfos[0];
+        }
+    }
+
+    // Which value patterns of the name the value matches, one bit per pattern; always 0 for the names which do not depend on their value.
+    // Two values with the same shape resolve to the same field in any topic, so this is what a layout has to be told apart by besides the names.
+    public long valueShapeOf(String fieldIdentifier, String fieldValue) {
+        final Pattern[] patterns = valuePatternsByName.get(fieldIdentifier);
+        if (patterns == null) {
+            return 0;
+        }
+
+        long shape = 0;
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].matcher(fieldValue).matches()) {
+                shape |= 1L << i;
+            }
+        }
+        return shape;
+    }
+
+    private static Map<String, Pattern[]> valuePatternsOf(Map<String, UnitInfo[]> rootFields, List<Map<String, UnitInfo[]>> childFields) {
+        final Map<String, Set<String>> patternsByName = new HashMap<>();
+        final List<Map<String, UnitInfo[]>> all = new ArrayList<>(childFields);
+        all.add(rootFields);
+        for (Map<String, UnitInfo[]> fields : all) {
+            fields.forEach((name, unitInfos) -> {
+                if (1 < unitInfos.length) {
+                    for (UnitInfo unitInfo : unitInfos) {
+                        if (unitInfo.valuePattern() != null) {
+                            patternsByName.computeIfAbsent(name, n -> new LinkedHashSet<>()).add(unitInfo.valuePattern().pattern());
+                        }
+                    }
+                }
+            });
+        }
+
+        final Map<String, Pattern[]> result = new HashMap<>();
+        patternsByName.forEach((name, patterns) -> result.put(name, patterns.stream().limit(Long.SIZE).map(Pattern::compile).toArray(Pattern[]::new)));
+        return Map.copyOf(result);
+    }
+
+    // The number of fields in the schema; the field indexes are dense below it.
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public ValueLookup valueLookup() {
+        return valueLookup;
+    }
+
+
+    // ---- Inner classes
+
+    // Collects the fields in the order they are configured, then freezes them into the immutable lookup tables.
+    private static class Builder {
+
+        private final ResourceBundle key;
+
+        // Parent index -> localized name -> candidates.
+        private final Map<Integer, Map<String, List<UnitInfo>>> pendingFields = new HashMap<>();
+        private final List<UnitInfo> schemaOrder = new ArrayList<>();
+        private UnitInfo currentTopic;
+
+        Builder(ResourceBundle key) {
+            this.key = key;
+        }
+
+        HeatpumpFieldSchema build() {
+            configureFields();
+
+            final List<Map<String, UnitInfo[]>> children = new ArrayList<>(schemaOrder.size());
+            for (UnitInfo unitInfo : schemaOrder) {
+                children.add(compile(pendingFields.get(unitInfo.index())));
+            }
+            return new HeatpumpFieldSchema(compile(pendingFields.get(ROOT)), List.copyOf(children), ValueLookup.of(key));
+        }
+
+        private void configureFields() {
+            // Temperature
+            addTopic(key.getString("temperature"), "temperature");
+            add(key.getString("temperature.flow"), "flow", DEGREE_CELSIUS);
+            add(key.getString("temperature.return_flow"), "return_flow", DEGREE_CELSIUS);
+            add(key.getString("temperature.return_flow_target"), "return_flow_target", DEGREE_CELSIUS);
+            add(key.getString("temperature.hot_gas"), "hot_gas", DEGREE_CELSIUS);
+            add(key.getString("temperature.outdoor"), "outdoor", DEGREE_CELSIUS);
+            add(key.getString("temperature.outdoor_avg"), "outdoor_avg", DEGREE_CELSIUS);
+            add(key.getString("temperature.domestic_hot_water"), "domestic_hot_water", DEGREE_CELSIUS);
+            add(key.getString("temperature.domestic_hot_water_target"), "domestic_hot_water_target", DEGREE_CELSIUS);
+            add(key.getString("temperature.heat_source_inlet"), "heat_source_inlet", DEGREE_CELSIUS);
+            add(key.getString("temperature.heat_source_out"), "heat_source_out", DEGREE_CELSIUS);
+            add(key.getString("temperature.flow_max"), "flow_max", DEGREE_CELSIUS);
+            add(key.getString("temperature.suction_compressor"), "suction_compressor", DEGREE_CELSIUS);
+            add(key.getString("temperature.compressor_heating"), "compressor_heating", DEGREE_CELSIUS, ".*" + DEGREE_CELSIUS.marker());
+            add(key.getString("temperature.overheating"), "overheating", KELVIN);
+
+            // Input
+            addTopic(key.getString("input"), "input");
+            add(key.getString("input.defrost_brine_flow"), "defrost_brine_flow", BOOLEAN);
+            add(key.getString("input.supplier_off_time"), "supplier_off_time", BOOLEAN);
+            add(key.getString("input.high_pressure_pressostat"), "high_pressure_pressostat", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
+            add(key.getString("input.motor_protection"), "motor_protection", BOOLEAN);
+            add(key.getString("input.high_pressure_sensor"), "high_pressure_sensor", BAR, ".*" + BAR.marker());
+            add(key.getString("input.low_pressure_sensor"), "low_pressure_sensor", BAR);
+            add(key.getString("input.pump_flow"), "pump_flow", LITRES_PER_HOUR);
+
+            // Output
+            addTopic(key.getString("output"), "output");
+            add(key.getString("output.domestic_hot_water_pump"), "domestic_hot_water_pump", BOOLEAN);
+            add(key.getString("output.floor_heating_pump"), "floor_heating_pump", BOOLEAN);
+            add(key.getString("output.heating_pump"), "heating_pump", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
+            add(key.getString("output.ventilator_well_brine_pump"), "ventilator_well_brine_pump", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
+            add(key.getString("output.compressor"), "compressor", BOOLEAN);
+            add(key.getString("output.circulation_pump"), "circulation_pump", BOOLEAN);
+            add(key.getString("output.additional_circulation_pump"), "additional_circulation_pump", BOOLEAN);
+            add(key.getString("output.additional_heating_generator_1"), "additional_heating_generator_1", BOOLEAN);
+            add(key.getString("output.additional_heating_generator_2"), "additional_heating_generator_2", BOOLEAN);
+            add(key.getString("output.compressor_heating"), "compressor_heating", BOOLEAN, key.getString("data.binary.0") + "|" + key.getString("data.binary.1"));
+            add(key.getString("output.compressor_speed_target"), "compressor_speed_target", HERTZ);
+            add(key.getString("output.compressor_speed"), "compressor_speed", HERTZ);
+            add(key.getString("output.ventilator_well_brine_pump_power"), "ventilator_well_brine_pump_power", PERCENT, ".*" + PERCENT.marker());
+            add(key.getString("output.heating_pump_power"), "heating_pump_power", PERCENT, ".*" + PERCENT.marker());
+
+            // Timing
+            addTopic(key.getString("timing"), "timing");
+            add(key.getString("timing.heat_pump_up"), "heat_pump_up", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.additional_heating_1_up"), "additional_heating_1_up", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.additional_heating_2_up"), "additional_heating_2_up", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.net_input_delay"), "net_input_delay", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.off_time_switching_cycle"), "off_time_switching_cycle", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.compressor_down"), "compressor_down", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.heating_control_more"), "heating_control_more", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.heating_control_less"), "heating_control_less", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.thermal_disinfection_up"), "thermal_disinfection_up", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.domestic_hot_water_blockade"), "domestic_hot_water_blockade", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.release_additional_heating"), "release_additional_heating", HOUR_MINUTE_SECONDS);
+            add(key.getString("timing.release_cooling"), "release_cooling", HOUR_MINUTE_SECONDS);
+
+            // Operating time
+            addTopic(key.getString("operating_time"), "operating_time");
+            add(key.getString("operating_time.compressor_operating_hours"), "compressor_operating_hours", HOURS);
+            add(key.getString("operating_time.compressor_impulses"), "compressor_impulses", INTEGER);
+            add(key.getString("operating_time.compressor_avg_runtime"), "compressor_avg_runtime", HOUR_MINUTE);
+            add(key.getString("operating_time.additional_heating_1_operating_hours"), "additional_heating_1_operating_hours", HOURS);
+            add(key.getString("operating_time.additional_heating_2_operating_hours"), "additional_heating_2_operating_hours", HOURS);
+            add(key.getString("operating_time.heat_pump_operating_hours"), "heat_pump_operating_hours", HOURS);
+            add(key.getString("operating_time.heating_operating_hours"), "heating_operating_hours", HOURS);
+            add(key.getString("operating_time.dhw_operating_hours"), "dhw_operating_hours", HOURS);
+
+            // Status
+            addTopic(key.getString("status"), "status");
+            add(key.getString("status.heat_pump_type"), "heat_pump_type", TEXT);
+            add(key.getString("status.software_version"), "software_version", TEXT);
+            add(key.getString("status.processor_version"), "processor_version", TEXT);
+            add(key.getString("status.io_version"), "io_version", HTML);
+            add(key.getString("status.interface_version"), "interface_version", HTML);
+            add(key.getString("status.inverter_version"), "inverter_version", TEXT);
+            add(key.getString("status.bivalence_level"), "bivalence_level", INTEGER);
+            add(key.getString("status.mode"), "mode", OPERATING_MODE);
+            add(key.getString("status.heating_capacity"), "heating_capacity", KILO_WATTS);
+
+            // Energy monitor
+            final UnitInfo monitor = addTopic(key.getString("monitor"), "monitor");
+            // Heat amount
+            addTopic(monitor, key.getString("monitor.heat_quantity"), "heat_quantity");
+            add(key.getString("monitor.heat_quantity.heating"), "heating", KILO_WATT_HOURS);
+            add(key.getString("monitor.heat_quantity.domestic_hot_water"), "domestic_hot_water", KILO_WATT_HOURS);
+            add(key.getString("monitor.heat_quantity.total"), "total", KILO_WATT_HOURS);
+            // Energy used
+            addTopic(monitor, key.getString("monitor.energy_input"), "energy_input");
+            add(key.getString("monitor.energy_input.heating"), "heating", KILO_WATT_HOURS);
+            add(key.getString("monitor.energy_input.domestic_hot_water"), "domestic_hot_water", KILO_WATT_HOURS);
+            add(key.getString("monitor.energy_input.total"), "total", KILO_WATT_HOURS);
+        }
+
+        private UnitInfo addTopic(String fieldIdentifier, String jsonIdentifier) {
+            return addTopic(null, fieldIdentifier, jsonIdentifier);
+        }
+
+        // The fields added after a topic are its children, until the next topic is added.
+        private UnitInfo addTopic(UnitInfo parent, String fieldIdentifier, String jsonIdentifier) {
+            currentTopic = register(parent, fieldIdentifier, jsonIdentifier, null, null);
+            return currentTopic;
+        }
+
+        private void add(String fieldIdentifier, String jsonIdentifier, Unit unit) {
+            add(fieldIdentifier, jsonIdentifier, unit, null);
+        }
+
+        private void add(String fieldIdentifier, String jsonIdentifier, Unit unit, String valuePattern) {
+            register(currentTopic, fieldIdentifier, jsonIdentifier, unit, valuePattern);
+        }
+
+        private UnitInfo register(UnitInfo parent, String fieldIdentifier, String jsonIdentifier, Unit unit, String valuePattern) {
+            final UnitInfo unitInfo = new UnitInfo(schemaOrder.size(), fieldIdentifier, jsonIdentifier, categoryBelow(parent), unit, valuePattern != null ? Pattern.compile(valuePattern) : null);
+            schemaOrder.add(unitInfo);
+            pendingFields.computeIfAbsent(indexOf(parent), i -> new LinkedHashMap<>()).computeIfAbsent(fieldIdentifier, n -> new ArrayList<>()).add(unitInfo);
+            return unitInfo;
+        }
+
+        private static Map<String, UnitInfo[]> compile(Map<String, List<UnitInfo>> fields) {
+            if (fields == null) {
+                return Map.of();
+            }
+            final Map<String, UnitInfo[]> result = new HashMap<>();
+            fields.forEach((name, unitInfos) -> result.put(name, unitInfos.toArray(new UnitInfo[0])));
+            return Map.copyOf(result);
+        }
+
+        // The category is the path of the topic ids above a field, e.g. 'monitor.heat_quantity'.
+        private static String categoryBelow(UnitInfo parent) {
+            if (parent == null) {
+                return "";
+            }
+            return parent.category().isEmpty() ? parent.identifier() : parent.category() + "." + parent.identifier();
+        }
+
+        private static int indexOf(UnitInfo parent) {
+            return parent != null ? parent.index() : ROOT;
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package ch.retorte.heatpump;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Priority;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import jakarta.interceptor.Interceptor;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// Micrometer meters for the hot paths, exposed on '/q/metrics'.
+// All meters are registered up front, so recording is just a few atomic updates; the percentiles are only computed when scraped.
+// Counters are kept per heat pump, the timings over all of them: each histogram comes with some 70 buckets, which would add up to thousands of series
+// for a larger fleet. They can still be split by heat pump with HEATPUMP_METRICS_PER_PUMP_TIMINGS.
+@Singleton
+public class HeatpumpInstrumentation {
+
+    // ---- Statics
+
+    private static final Logger LOG = Logger.getLogger(HeatpumpInstrumentation.class);
+
+    private static final String PREFIX = "heatpump.";
+    private static final String PUMP_TAG = "pump";
+
+
+    // ---- Injects
+
+    @Inject
+    MeterRegistry registry;
+
+
+    // ---- Fields
+
+    @ConfigProperty(name = "heatpump.metrics.per-pump-timings")
+    boolean perPumpTimings;
+
+    private Timer serveTimer;
+    private Timer dataAgeTimer;
+    private Timer readyTimer;
+
+
+    // ---- Methods
+
+    // Registered as soon as the bean exists rather than on startup, as other startup observers (and early requests) may already record.
+    @PostConstruct
+    void registerMeters() {
+        serveTimer = Timer.builder(PREFIX + "serve")
+            .description("Time to answer a data request once the data is available")
+            .publishPercentileHistogram()
+            .register(registry);
+        dataAgeTimer = Timer.builder(PREFIX + "data.age")
+            .description("Age of the served data")
+            .publishPercentileHistogram()
+            .maximumExpectedValue(Duration.ofMinutes(5))
+            .register(registry);
+        readyTimer = Timer.builder(PREFIX + "startup.ready")
+            .description("Time from the start of the process until all startup observers ran")
+            .register(registry);
+    }
+
+    // Runs after all other startup observers, so this is about when the first request can be answered.
+    void onReady(@Observes @Priority(Interceptor.Priority.PLATFORM_AFTER) StartupEvent event) {
+        sinceProcessStart().ifPresent(duration -> {
+            readyTimer.record(duration);
+            LOG.info("Ready " + duration.toMillis() + " ms after process start.");
+        });
+    }
+
+    // The start as seen by the operating system, so it includes the time until the JVM (or native image) runs any code.
+    private static Optional<Duration> sinceProcessStart() {
+        return ProcessHandle.current().info().startInstant().map(start -> Duration.between(start, Instant.now()));
+    }
+
+    public Recorder recorderFor(String heatpumpId) {
+        return new Recorder(heatpumpId);
+    }
+
+    // Time from taking the request until the response is built, without the time a (long polling) request is parked.
+    public void recordServe(long startNanos) {
+        serveTimer.record(System.nanoTime() - startNanos, NANOSECONDS);
+    }
+
+    // How old the served data is, i.e. the time since the values arrived from the heat pump.
+    public void recordDataAge(long timestamp) {
+        dataAgeTimer.record(Math.max(0, System.currentTimeMillis() - timestamp * 1000), MILLISECONDS);
+    }
+
+
+    // ---- Inner classes
+
+    // The meters of one heat pump; the counters are tagged with its id, the timings only if configured so.
+    public class Recorder {
+
+        private final String heatpumpId;
+        private final Timer roundTrip;
+        private final DistributionSummary frameSize;
+        private final Timer contentParse;
+        private final Timer valuesParse;
+        private final Timer render;
+        private final Timer lockHold;
+        private final Timer reconnect;
+        private final Timer firstData;
+        private final Map<HeatpumpDataConverter.Unit, Timer> conversions = new EnumMap<>(HeatpumpDataConverter.Unit.class);
+        private final Map<String, Counter> transitions = new ConcurrentHashMap<>();
+        private final Counter connects;
+        private final Counter errors;
+        private final Counter escalations;
+        private final Counter staleSessions;
+
+        Recorder(String heatpumpId) {
+            this.heatpumpId = heatpumpId;
+            roundTrip = timer("roundtrip", "Time from sending REFRESH until the values arrive").publishPercentileHistogram().register(registry);
+            frameSize = DistributionSummary.builder(PREFIX + "frame.size")
+                .description("Size of the received WebSocket frames")
+                .baseUnit("chars")
+                .tags(timingTags())
+                .publishPercentileHistogram()
+                .register(registry);
+            contentParse = timer("parse", "Time to parse a frame").tag("frame", "content").publishPercentileHistogram().register(registry);
+            valuesParse = timer("parse", "Time to parse a frame").tag("frame", "values").publishPercentileHistogram().register(registry);
+            render = timer("render", "Time to render the JSON document").publishPercentileHistogram().register(registry);
+            lockHold = timer("refresh.lock", "Time a refresh holds the state machine lock").publishPercentileHistogram().register(registry);
+            reconnect = timer("reconnect", "Time from losing the session until values arrive again").publishPercentileHistogram().register(registry);
+            // Just one value per heat pump, so this one is always kept apart.
+            firstData = Timer.builder(PREFIX + "startup.first.data")
+                .description("Time from the start of the process until the first values arrived")
+                .tag(PUMP_TAG, heatpumpId)
+                .register(registry);
+            for (HeatpumpDataConverter.Unit unit : HeatpumpDataConverter.Unit.values()) {
+                conversions.put(unit, timer("convert", "Time to convert a changed value").tag("unit", unit.name()).register(registry));
+            }
+            connects = counter("connects", "WebSocket connection attempts");
+            errors = counter("errors", "WebSocket errors");
+            escalations = counter("escalations", "Reconnect attempts at the maximum backoff delay");
+            staleSessions = counter("stale.sessions", "Sessions dropped by the watchdog as no values arrived");
+        }
+
+        // Without the pump tag, the recorders of all heat pumps get the same timers from the registry.
+        private Timer.Builder timer(String name, String description) {
+            return Timer.builder(PREFIX + name).description(description).tags(timingTags());
+        }
+
+        private String[] timingTags() {
+            return perPumpTimings ? new String[] { PUMP_TAG, heatpumpId } : new String[0];
+        }
+
+        private Counter counter(String name, String description) {
+            return Counter.builder(PREFIX + name).description(description).tag(PUMP_TAG, heatpumpId).register(registry);
+        }
+
+        public void recordRoundTrip(long sentNanos) {
+            roundTrip.record(System.nanoTime() - sentNanos, NANOSECONDS);
+        }
+
+        public void recordFrameSize(int size) {
+            frameSize.record(size);
+        }
+
+        public void recordContentParse(long startNanos) {
+            contentParse.record(System.nanoTime() - startNanos, NANOSECONDS);
+        }
+
+        public void recordValuesParse(long startNanos) {
+            valuesParse.record(System.nanoTime() - startNanos, NANOSECONDS);
+        }
+
+        public void recordRender(long startNanos) {
+            render.record(System.nanoTime() - startNanos, NANOSECONDS);
+        }
+
+        public void recordLockHold(long startNanos) {
+            lockHold.record(System.nanoTime() - startNanos, NANOSECONDS);
+        }
+
+        public void recordConversion(HeatpumpDataConverter.Unit unit, long startNanos) {
+            conversions.get(unit).record(System.nanoTime() - startNanos, NANOSECONDS);
+        }
+
+        // Only called on state changes, so the counter is looked up (or registered) on the fly.
+        public void recordTransition(String state) {
+            transitions.computeIfAbsent(state, s -> Counter.builder(PREFIX + "state.transitions")
+                .description("State machine transitions by target state")
+                .tag(PUMP_TAG, heatpumpId)
+                .tag("state", s)
+                .register(registry)).increment();
+        }
+
+        public void recordConnect() {
+            connects.increment();
+        }
+
+        public void recordError() {
+            errors.increment();
+        }
+
+        public void recordEscalation() {
+            escalations.increment();
+        }
+
+        public void recordReconnect(long lostNanos) {
+            reconnect.record(System.nanoTime() - lostNanos, NANOSECONDS);
+        }
+
+        public void recordStale() {
+            staleSessions.increment();
+        }
+
+        // Only for the first snapshot of the process; later ones after a lost session are covered by the reconnect timer.
+        public void recordFirstData() {
+            sinceProcessStart().ifPresent(duration -> {
+                firstData.record(duration);
+                LOG.info("[" + heatpumpId + "] First data " + duration.toMillis() + " ms after process start.");
+            });
+        }
+    }
+
+}
@@ -0,0 +1,9 @@
+package ch.retorte.heatpump;
+
+import java.util.Collection;
+import java.util.List;
+
+// Fired after every refresh, from the WebSocket listener thread once the heat pump released its lock. The items are live views on the values, which the
+// next frame of the heat pump changes: observers have to be synchronous and copy (or render) whatever they need before returning, never keep the items
+// for later or hand them to another thread. The values of the snapshot (Heatpump.getSnapshot()) are copies, for anybody who needs them afterwards.
+public record HeatpumpRefresh(Heatpump heatpump, long sequence, long timestamp, Collection<Item> leaves, List<Item> changedItems, boolean complete) {}
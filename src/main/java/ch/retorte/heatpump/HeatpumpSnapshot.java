@@ -0,0 +1,16 @@
+package ch.retorte.heatpump;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// An immutable view of one refresh, handed out to readers without any locking. The sequence grows with every refresh of a heat pump, the version is unique over restarts too (used as ETag).
+// The arrays hold the state of every leaf at that refresh, in document order; they are never written to once published. The index finds leaves by key or category.
+// Binary and compressed encodings of the document are only added (to the concurrent map, by name) once they are requested.
+public record HeatpumpSnapshot(long sequence, long timestamp, String version, byte[] json, List<Item> leaves, FieldIndex index, String[] textuals, double[] numerics, long[] changedSequences, String[] renderedLeaves, Map<String, byte[]> encodings) {
+
+    // The encodings are those of the full document, so the derived snapshot starts with its own.
+    public HeatpumpSnapshot withJson(byte[] json) {
+        return new HeatpumpSnapshot(sequence, timestamp, version, json, leaves, index, textuals, numerics, changedSequences, renderedLeaves, new ConcurrentHashMap<>());
+    }
+}
@@ -3,130 +3,81 @@ package ch.retorte.heatpump;
 import jakarta.json.bind.annotation.JsonbProperty;
 import jakarta.json.bind.annotation.JsonbTransient;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.ResourceBundle;
-import java.util.stream.Collectors;
-
+// A leaf of a heat pump session; just a view on its position in the item store, which holds the actual values.
 public class Item {
 
     // ---- Fields
 
-    private final ResourceBundle bundle;
-    private final String name;
-    private final String nodeId;
-    private final HeatpumpDataConverter.UnitInfo unitInfo;
-    private String raw = null;
-    private String textual;
-    private Number numeric;
-
-    private Item parent;
-    List<Item> children = new ArrayList<>();
+    private final ItemStore store;
+    private final int position;
 
 
     // ---- Constructor
 
-    public Item(ResourceBundle bundle, String name, String nodeId, HeatpumpDataConverter.UnitInfo unitInfo) {
-        this.bundle = bundle;
-        this.name = name;
-        this.nodeId = nodeId;
-        this.unitInfo = unitInfo;
+    Item(ItemStore store, int position) {
+        this.store = store;
+        this.position = position;
     }
 
 
-    // ---- Heritage methods
-
-    public void addChildren(List<Item> children) {
-        this.children.addAll(children);
-        this.children.forEach(c -> c.setParent(this));
-    }
-
-    public boolean hasChildren() {
-        return !children.isEmpty();
-    }
-
-    public void setParent(Item parent) {
-        this.parent = parent;
-    }
+    // ---- Property methods
 
     @JsonbTransient
-    public Item getParent() {
-        return parent;
+    public String getNodeId() {
+        return store.nodeId(position);
     }
 
-    public boolean hasParent() {
-        return parent != null;
+    public boolean setRawValue(String rawValue) {
+        return store.setRawValue(position, rawValue);
     }
 
     @JsonbTransient
-    public List<Item> getChildren() {
-        return children;
-    }
-
-    private List<Item> toRoot() {
-        List<Item> parents = new ArrayList<>();
-        Item p = this;
-        while (p.hasParent()) {
-            p = p.getParent();
-            parents.add(p);
-        }
-        return parents;
+    public HeatpumpDataConverter.UnitInfo getUnitInfo() {
+        return store.field(position);
     }
 
-
-    // ---- Property methods
-
     @JsonbTransient
-    public String getNodeId() {
-        return nodeId;
+    public long getChangedSequence() {
+        return store.changedSequence(position);
     }
 
-    public void setRawValue(String rawValue) {
-        if (unitInfo == null) {
-            throw new IllegalStateException("Unit info not set.");
-        }
-
-        this.raw = rawValue;
-
-        unitInfo.unit().convertWith(bundle, rawValue,
-            textual -> this.textual = textual,
-            numeric -> this.numeric = numeric
-        );
+    public void setChangedSequence(long changedSequence) {
+        store.setChangedSequence(position, changedSequence);
     }
 
     @JsonbProperty
     public String getId() {
-        return unitInfo.identifier();
+        return store.field(position).identifier();
     }
 
     @JsonbProperty
     public String getCategory() {
-        return toRoot().reversed().stream().map(Item::getId).collect(Collectors.joining("."));
+        return store.field(position).category();
     }
 
     @JsonbProperty
     public String getName() {
-        return name;
+        return store.field(position).name();
     }
 
     @JsonbProperty
     public String getUnit() {
-        return unitInfo.unit().marker();
+        return store.field(position).unit().marker();
     }
 
     @JsonbProperty
     public String getTextual() {
-        return textual;
+        return store.textual(position);
     }
 
     @JsonbProperty
-    public Number getNumeric() {
-        return numeric;
+    public double getNumeric() {
+        return store.numeric(position);
     }
 
     @JsonbTransient
-    public boolean isLeaf() {
-        return raw != null;
+    public boolean hasNumeric() {
+        return !Double.isNaN(store.numeric(position));
     }
 
 }
@@ -0,0 +1,152 @@
+package ch.retorte.heatpump;
+
+import java.util.*;
+
+// The leaves of one session, kept column by column and indexed by their position in the document.
+// Name, id, category and unit come from the shared layout, so per leaf only the node id and the values are stored. The items are just views on a position.
+// When a new session brings the same layout, the store is kept and only the node ids are bound anew.
+public class ItemStore {
+
+    // ---- Statics
+
+    static final ItemStore EMPTY = new ItemStore(HeatpumpDataParser.ContentLayout.EMPTY, new String[0]);
+
+
+    // ---- Fields
+
+    private final HeatpumpDataParser.ContentLayout layout;
+    private final HeatpumpDataConverter.ValueLookup valueLookup;
+    private final HeatpumpDataConverter.UnitInfo[] fields;
+    private final String[] nodeIds;
+
+    // Only written by the WebSocket listener thread; readers get copies through the snapshots.
+    private final String[] raws;
+    private final String[] textuals;
+    private final double[] numerics;
+    private final long[] changedSequences;
+
+    private final List<Item> items;
+    private Map<String, Item> itemsByNodeId;
+
+
+    // ---- Constructor
+
+    private ItemStore(HeatpumpDataParser.ContentLayout layout, String[] nodeIds) {
+        this.layout = layout;
+        this.valueLookup = layout.valueLookup();
+        this.fields = layout.fields();
+        this.nodeIds = nodeIds.clone();
+
+        final int size = fields.length;
+        raws = new String[size];
+        textuals = new String[size];
+        numerics = new double[size];
+        Arrays.fill(numerics, Double.NaN);
+        changedSequences = new long[size];
+
+        final Item[] views = new Item[size];
+        for (int position = 0; position < size; position++) {
+            views[position] = new Item(this, position);
+        }
+        items = List.of(views);
+        itemsByNodeId = indexOf(items, this.nodeIds);
+    }
+
+
+    // ---- Methods
+
+    // A new store for the leaves of the content; no values are set yet.
+    public static ItemStore of(HeatpumpDataParser.Content content) {
+        return new ItemStore(content.layout(), content.nodeIds());
+    }
+
+    private static Map<String, Item> indexOf(List<Item> items, String[] nodeIds) {
+        final Map<String, Item> result = new HashMap<>();
+        for (int position = 0; position < nodeIds.length; position++) {
+            result.put(nodeIds[position], items.get(position));
+        }
+        return result;
+    }
+
+    public boolean hasLayoutOf(HeatpumpDataParser.Content content) {
+        return layout == content.layout();
+    }
+
+    // Takes over the node ids of a new session with the same layout; items, values and positions all stay as they are.
+    public void rebind(HeatpumpDataParser.Content content) {
+        System.arraycopy(content.nodeIds(), 0, nodeIds, 0, nodeIds.length);
+        itemsByNodeId = indexOf(items, nodeIds);
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    // All leaves in document order.
+    public List<Item> items() {
+        return items;
+    }
+
+    public Item itemByNodeId(String nodeId) {
+        return itemsByNodeId.get(nodeId);
+    }
+
+    public FieldIndex index() {
+        return layout.index();
+    }
+
+    public String[] copyTextuals() {
+        return textuals.clone();
+    }
+
+    public double[] copyNumerics() {
+        return numerics.clone();
+    }
+
+    public long[] copyChangedSequences() {
+        return changedSequences.clone();
+    }
+
+    HeatpumpDataConverter.UnitInfo field(int position) {
+        return fields[position];
+    }
+
+    String nodeId(int position) {
+        return nodeIds[position];
+    }
+
+    String textual(int position) {
+        return textuals[position];
+    }
+
+    double numeric(int position) {
+        return numerics[position];
+    }
+
+    long changedSequence(int position) {
+        return changedSequences[position];
+    }
+
+    void setChangedSequence(int position, long changedSequence) {
+        changedSequences[position] = changedSequence;
+    }
+
+    boolean setRawValue(int position, String rawValue) {
+        // Most values do not change between refreshes, so we neither convert them again nor report them as changed.
+        if (rawValue.equals(raws[position])) {
+            return false;
+        }
+
+        // The raw value is only taken once it is converted: a value which does not convert is tried again with the next refresh.
+        final HeatpumpDataConverter.Unit unit = fields[position].unit();
+        if (unit.isNumeric()) {
+            numerics[position] = unit.convertNumeric(valueLookup, rawValue);
+        }
+        else {
+            textuals[position] = unit.convertTextual(rawValue);
+        }
+        raws[position] = rawValue;
+        return true;
+    }
+
+}
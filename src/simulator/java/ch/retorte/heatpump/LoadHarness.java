@@ -0,0 +1,186 @@
+package ch.retorte.heatpump;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Drives the HTTP endpoints of a running server (e.g. fed by the 'LuxtronikSimulator') with many concurrent clients,
+// each sending its next request as soon as the previous one is answered, and reports the throughput and the latency percentiles.
+// Run with e.g. './gradlew loadTest --args="--clients=200 --duration=30s --path=/ --path=/?fields=id,numeric --accept-encoding=gzip"', see README.
+public class LoadHarness {
+
+    // ---- Fields
+
+    private final URI url;
+    private final int clients;
+    private final Duration duration;
+    private final Duration warmup;
+    private final List<String> paths;
+    private final String accept;
+    private final String acceptEncoding;
+    private final String results;
+
+    private final HttpClient client;
+
+
+    // ---- Constructor
+
+    LoadHarness(Options options) {
+        url = URI.create(options.string("url", "http://localhost:8080"));
+        clients = options.integer("clients", 50);
+        duration = options.duration("duration", Duration.ofSeconds(30));
+        warmup = options.duration("warmup", Duration.ofSeconds(5));
+        paths = options.strings("path", "/");
+        accept = options.string("accept", "application/json");
+        acceptEncoding = options.string("accept-encoding", null);
+        results = options.string("results", null);
+
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+
+    // ---- Methods
+
+    public static void main(String[] args) throws Exception {
+        new LoadHarness(Options.of(args)).run();
+    }
+
+    private void run() throws Exception {
+        System.out.println("Running " + clients + " clients against " + url + " " + paths + " for " + warmup + " warmup and " + duration + " measurement");
+
+        final long start = System.nanoTime();
+        final long measureFrom = start + warmup.toNanos();
+        final long end = measureFrom + duration.toNanos();
+        final List<Client> all = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                final Client c = new Client(i);
+                all.add(c);
+                executor.submit(() -> c.run(measureFrom, end));
+            }
+        }
+
+        report(all);
+    }
+
+    private void report(List<Client> all) throws IOException {
+        long requests = 0;
+        long errors = 0;
+        long bytes = 0;
+        for (Client c : all) {
+            requests += c.count;
+            errors += c.errors;
+            bytes += c.bytes;
+        }
+
+        final long[] latencies = new long[(int) requests];
+        int offset = 0;
+        for (Client c : all) {
+            System.arraycopy(c.latencies, 0, latencies, offset, c.count);
+            offset += c.count;
+        }
+        Arrays.sort(latencies);
+
+        final double seconds = duration.toNanos() / 1e9;
+        final String json = "{\"url\":\"" + url + "\",\"paths\":\"" + String.join(" ", paths) + "\",\"clients\":" + clients
+            + ",\"seconds\":" + seconds + ",\"requests\":" + requests + ",\"errors\":" + errors
+            + ",\"requestsPerSecond\":" + round(requests / seconds) + ",\"bytesPerSecond\":" + round(bytes / seconds)
+            + ",\"latencyMillis\":{\"p50\":" + percentile(latencies, 0.5) + ",\"p90\":" + percentile(latencies, 0.9) + ",\"p99\":" + percentile(latencies, 0.99)
+            + ",\"p999\":" + percentile(latencies, 0.999) + ",\"max\":" + percentile(latencies, 1) + "}}";
+
+        System.out.printf("Requests: %d (%d errors), %.1f req/s, %.1f KiB/s%n", requests, errors, requests / seconds, bytes / seconds / 1024);
+        System.out.printf("Latency: p50 %s ms, p90 %s ms, p99 %s ms, p99.9 %s ms, max %s ms%n",
+            percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 0.999), percentile(latencies, 1));
+        if (results != null) {
+            final Path path = Path.of(results);
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            Files.writeString(path, json);
+            System.out.println("Written to " + path);
+        }
+    }
+
+    // Nearest rank, in milliseconds with microsecond resolution.
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank - 1, 0)] / 1000 / 1000.0;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private HttpRequest requestFor(String path) {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(url.resolve(path)).timeout(Duration.ofSeconds(30)).header("Accept", accept);
+        if (acceptEncoding != null) {
+            builder.header("Accept-Encoding", acceptEncoding);
+        }
+        return builder.build();
+    }
+
+
+    // ---- Inner classes
+
+    // One client goes through the paths in turn; latencies are only kept for requests started after the warmup.
+    private class Client {
+
+        private final int offset;
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+        private long bytes;
+
+        Client(int offset) {
+            this.offset = offset;
+        }
+
+        void run(long measureFrom, long end) {
+            final List<HttpRequest> requests = paths.stream().map(LoadHarness.this::requestFor).toList();
+            for (int i = offset; System.nanoTime() < end; i++) {
+                final long started = System.nanoTime();
+                boolean failed;
+                long received = 0;
+                try {
+                    final HttpResponse<byte[]> response = client.send(requests.get(i % requests.size()), HttpResponse.BodyHandlers.ofByteArray());
+                    failed = response.statusCode() != 200;
+                    received = response.body().length;
+                }
+                catch (IOException e) {
+                    failed = true;
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+
+                if (started < measureFrom) {
+                    continue;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - started;
+                bytes += received;
+                if (failed) {
+                    errors++;
+                }
+            }
+        }
+    }
+
+}
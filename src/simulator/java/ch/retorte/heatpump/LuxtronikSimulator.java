@@ -0,0 +1,443 @@
+package ch.retorte.heatpump;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// A stand-in for the Luxtronik controllers of one or more heat pumps, to run the server against without having any.
+// Each simulated pump listens on its own port and speaks just enough of the 'Lux_WS' WebSocket protocol: 'LOGIN;0' is answered with the navigation,
+// 'GET;<id>' with the content and 'REFRESH' with the values, all based on the (made up) frames in 'src/jmh/resources/fixtures'.
+// Run with e.g. './gradlew simulator --args="--pumps=3 --drift=0.2 --fragment=1000 --latency=20ms --disconnect=0.01"', see README. The tests start it
+// on a free port and switch its failure modes while it runs.
+public class LuxtronikSimulator {
+
+    // ---- Statics
+
+    private static final String SUB_PROTOCOL = "Lux_WS";
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final String CONTENT = "/fixtures/content.xml";
+    private static final String INFORMATION_ID = "0x9a7c28";
+    private static final String NAVIGATION = "<Navigation id='0x9a7c10'><item id='" + INFORMATION_ID + "'><name>Informationen</name></item></Navigation>";
+
+    private static final Pattern VALUE = Pattern.compile("<value>([^<]*)</value>");
+    private static final Pattern NAME = Pattern.compile("<name>[^<]*</name>");
+    // Numbers with an optional fraction and unit, e.g. '34.6°C', '14872h' or '1384 l/h'; not times or dates.
+    private static final Pattern NUMBER = Pattern.compile("(-?\\d+)(?:\\.(\\d+))?([^\\d.:]*)");
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xa;
+
+
+    // ---- Fields
+
+    private final int pumps;
+    private final int port;
+    private final double drift;
+    private final int fragment;
+    private final Duration latency;
+    private final Duration jitter;
+    private final double disconnect;
+    private final long seed;
+    private volatile double reject;
+    private volatile double silence;
+
+    private final String content;
+    private final List<String> valueTemplate = new ArrayList<>();
+    private final List<String> initialValues = new ArrayList<>();
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong closes = new AtomicLong();
+
+
+    // ---- Constructor
+
+    LuxtronikSimulator(Options options) throws IOException {
+        pumps = options.integer("pumps", 1);
+        port = options.integer("port", 8214);
+        drift = options.decimal("drift", 0.2);
+        fragment = options.integer("fragment", 0);
+        latency = options.duration("latency", Duration.ZERO);
+        jitter = options.duration("jitter", Duration.ZERO);
+        disconnect = options.decimal("disconnect", 0);
+        seed = options.integer("seed", 42);
+        reject = options.decimal("reject", 0);
+        silence = options.decimal("silence", 0);
+
+        try (InputStream in = LuxtronikSimulator.class.getResourceAsStream(CONTENT)) {
+            content = new String(Objects.requireNonNull(in, CONTENT).readAllBytes(), UTF_8).trim();
+        }
+        prepareValueTemplate();
+    }
+
+
+    // ---- Methods
+
+    public static void main(String[] args) throws Exception {
+        new LuxtronikSimulator(Options.of(args)).run();
+    }
+
+    // The values frame is the content tree without the names, so it is kept as the text around the values and joined with the current ones.
+    private void prepareValueTemplate() {
+        final String tree = NAME.matcher(content).replaceAll("").replace("<Content>", "<values>").replace("</Content>", "</values>");
+        final Matcher matcher = VALUE.matcher(tree);
+        int end = 0;
+        while (matcher.find()) {
+            valueTemplate.add(tree.substring(end, matcher.start(1)));
+            initialValues.add(matcher.group(1));
+            end = matcher.end(1);
+        }
+        valueTemplate.add(tree.substring(end));
+    }
+
+    private void run() throws IOException, InterruptedException {
+        final List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < pumps; i++) {
+            simulate(port + i, seed + i);
+            addresses.add("pump" + (i + 1) + "=127.0.0.1:" + (port + i));
+        }
+
+        System.out.println("Simulating " + pumps + " heat pump(s), start the server with:");
+        System.out.println("HEATPUMP_ADDRESS=" + (pumps == 1 ? "127.0.0.1:" + port : String.join(",", addresses)));
+        while (true) {
+            Thread.sleep(Duration.ofSeconds(10));
+            System.out.println("Connections: " + connections.get() + ", refreshes: " + refreshes.get() + ", disconnects: " + disconnects.get() + ", closed by client: " + closes.get());
+        }
+    }
+
+    // Starts a heat pump accepting connections on the given port (any free one with 0).
+    SimulatedHeatpump simulate(int port, long seed) throws IOException {
+        final SimulatedHeatpump heatpump = new SimulatedHeatpump(new ServerSocket(port), new Random(seed));
+        Thread.ofPlatform().name("simulator-" + heatpump.port()).daemon().start(heatpump::accept);
+        return heatpump;
+    }
+
+    // The probability of closing a session right after the handshake, as a controller which is just rebooting does.
+    void setReject(double probability) {
+        reject = probability;
+    }
+
+    // The probability of not answering a refresh at all, as a controller which hangs does.
+    void setSilence(double probability) {
+        silence = probability;
+    }
+
+    long connections() {
+        return connections.get();
+    }
+
+    long refreshes() {
+        return refreshes.get();
+    }
+
+    long closes() {
+        return closes.get();
+    }
+
+
+    // The server side of WebSocket (RFC 6455), as far as needed.
+
+    private static boolean handshake(InputStream in, OutputStream out) throws IOException {
+        String key = null;
+        String protocols = "";
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            final String value = line.substring(colon + 1).trim();
+            switch (name) {
+                case "sec-websocket-key" -> key = value;
+                case "sec-websocket-protocol" -> protocols = value;
+                default -> {}
+            }
+        }
+
+        if (key == null || !List.of(protocols.split("\\s*,\\s*")).contains(SUB_PROTOCOL)) {
+            out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes(ISO_8859_1));
+            out.flush();
+            return false;
+        }
+
+        out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + acceptOf(key) + "\r\n"
+            + "Sec-WebSocket-Protocol: " + SUB_PROTOCOL + "\r\n\r\n").getBytes(ISO_8859_1));
+        out.flush();
+        return true;
+    }
+
+    private static String acceptOf(String key) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(ISO_8859_1)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(ISO_8859_1);
+    }
+
+    // The next text message (assembled from its fragments), or null once the client closed the connection. Pings are answered on the way.
+    private static String readMessage(InputStream in, OutputStream out) throws IOException {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (true) {
+            final int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            final boolean fin = (first & 0x80) != 0;
+            final int opcode = first & 0x0f;
+            final byte[] payload = readPayload(in);
+
+            switch (opcode) {
+                case OPCODE_TEXT, OPCODE_CONTINUATION -> {
+                    message.writeBytes(payload);
+                    if (fin) {
+                        return message.toString(UTF_8);
+                    }
+                }
+                case OPCODE_PING -> writeFrame(out, OPCODE_PONG, true, payload, 0, payload.length);
+                case OPCODE_CLOSE -> {
+                    writeFrame(out, OPCODE_CLOSE, true, payload, 0, Math.min(payload.length, 2));
+                    return null;
+                }
+                default -> {}
+            }
+        }
+    }
+
+    // Frames from clients are always masked.
+    private static byte[] readPayload(InputStream in) throws IOException {
+        final int second = in.read();
+        long length = second & 0x7f;
+        if (length == 126) {
+            length = (in.read() << 8) | in.read();
+        }
+        else if (length == 127) {
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = (length << 8) | in.read();
+            }
+        }
+
+        final byte[] mask = (second & 0x80) != 0 ? in.readNBytes(4) : new byte[4];
+        final byte[] payload = in.readNBytes((int) length);
+        if (payload.length < length) {
+            throw new EOFException();
+        }
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] ^= mask[i & 3];
+        }
+        return payload;
+    }
+
+    private void sendText(OutputStream out, String text) throws IOException {
+        final byte[] data = text.getBytes(UTF_8);
+        if (fragment <= 0 || data.length <= fragment) {
+            writeFrame(out, OPCODE_TEXT, true, data, 0, data.length);
+            return;
+        }
+
+        // Split into fragments of the given size, even in the middle of a character, as a real WebSocket peer may do.
+        for (int offset = 0; offset < data.length; offset += fragment) {
+            final int length = Math.min(fragment, data.length - offset);
+            writeFrame(out, offset == 0 ? OPCODE_TEXT : OPCODE_CONTINUATION, data.length <= offset + length, data, offset, length);
+        }
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, boolean fin, byte[] data, int offset, int length) throws IOException {
+        out.write((fin ? 0x80 : 0) | opcode);
+        if (length < 126) {
+            out.write(length);
+        }
+        else if (length < 0x10000) {
+            out.write(126);
+            out.write(length >>> 8);
+            out.write(length & 0xff);
+        }
+        else {
+            out.write(127);
+            for (int i = 7; 0 <= i; i--) {
+                out.write((int) ((long) length >>> (8 * i)) & 0xff);
+            }
+        }
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+
+    // ---- Inner classes
+
+    // The values of one heat pump drift a bit on every refresh, shared by all its connections.
+    class SimulatedHeatpump {
+
+        private final ServerSocket serverSocket;
+        private final Random random;
+        private final String[] values;
+
+        SimulatedHeatpump(ServerSocket serverSocket, Random random) {
+            this.serverSocket = serverSocket;
+            this.random = random;
+            this.values = initialValues.toArray(new String[0]);
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        private void accept() {
+            while (true) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    Thread.ofVirtual().start(() -> serve(socket));
+                }
+                catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        System.err.println("Not accepting connections on " + serverSocket.getLocalPort() + ": " + e.getMessage());
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                if (!handshake(in, out)) {
+                    return;
+                }
+                connections.incrementAndGet();
+                if (random(reject)) {
+                    // A close frame with status 1001 ('going away'), then the connection is gone.
+                    writeFrame(out, OPCODE_CLOSE, true, new byte[] { 0x03, (byte) 0xe9 }, 0, 2);
+                    disconnects.incrementAndGet();
+                    return;
+                }
+
+                String message;
+                while ((message = readMessage(in, out)) != null) {
+                    final String answer = answerTo(message);
+                    if (answer == null) {
+                        continue;
+                    }
+                    if (message.equals("REFRESH") && random(disconnect)) {
+                        // Just drops the connection, as when the heat pump reboots or the network goes away.
+                        disconnects.incrementAndGet();
+                        return;
+                    }
+                    if (message.equals("REFRESH") && random(silence)) {
+                        continue;
+                    }
+                    delay();
+                    sendText(out, answer);
+                }
+                closes.incrementAndGet();
+            }
+            catch (SocketException e) {
+                // Closed by the client.
+                closes.incrementAndGet();
+            }
+            catch (IOException | InterruptedException e) {
+                System.err.println("Connection failed: " + e.getMessage());
+            }
+        }
+
+        private String answerTo(String message) {
+            if (message.startsWith("LOGIN")) {
+                return NAVIGATION;
+            }
+            if (message.startsWith("GET;")) {
+                return message.substring(4).equals(INFORMATION_ID) ? content : "<Content></Content>";
+            }
+            if (message.equals("REFRESH")) {
+                refreshes.incrementAndGet();
+                return nextValues();
+            }
+            return null;
+        }
+
+        private synchronized String nextValues() {
+            final StringBuilder result = new StringBuilder(content.length());
+            for (int i = 0; i < values.length; i++) {
+                values[i] = drifted(values[i]);
+                result.append(valueTemplate.get(i)).append(values[i]);
+            }
+            return result.append(valueTemplate.getLast()).toString();
+        }
+
+        // Numbers move by one step in their last digit, switches are flipped; anything else stays as it is.
+        private String drifted(String value) {
+            if (!random(drift)) {
+                return value;
+            }
+            switch (value) {
+                case "Ein" -> {
+                    return "Aus";
+                }
+                case "Aus" -> {
+                    return "Ein";
+                }
+                default -> {
+                    final Matcher matcher = NUMBER.matcher(value);
+                    if (!matcher.matches()) {
+                        return value;
+                    }
+                    final BigDecimal number = new BigDecimal(matcher.group(2) == null ? matcher.group(1) : matcher.group(1) + "." + matcher.group(2));
+                    final BigDecimal step = BigDecimal.ONE.movePointLeft(number.scale());
+                    return (random.nextBoolean() ? number.add(step) : number.subtract(step)).toPlainString() + matcher.group(3);
+                }
+            }
+        }
+
+        private synchronized boolean random(double probability) {
+            return 0 < probability && random.nextDouble() < probability;
+        }
+
+        private void delay() throws InterruptedException {
+            final long millis = latency.toMillis() + (jitter.isZero() ? 0 : ThreadLocalRandom.current().nextLong(jitter.toMillis() + 1));
+            if (0 < millis) {
+                Thread.sleep(millis);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package ch.retorte.heatpump;
+
+import java.time.Duration;
+import java.util.*;
+
+// Command line options of the form '--name=value'; a name may be given more than once.
+class Options {
+
+    // ---- Fields
+
+    private final Map<String, List<String>> values = new HashMap<>();
+
+
+    // ---- Constructor
+
+    private Options() {}
+
+
+    // ---- Methods
+
+    static Options of(String[] args) {
+        final Options result = new Options();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Options are expected as '--name=value', not: " + arg);
+            }
+            final int separator = arg.indexOf('=');
+            final String name = separator < 0 ? arg.substring(2) : arg.substring(2, separator);
+            final String value = separator < 0 ? "true" : arg.substring(separator + 1);
+            result.values.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+        }
+        return result;
+    }
+
+    String string(String name, String defaultValue) {
+        final List<String> list = values.get(name);
+        return list != null ? list.getLast() : defaultValue;
+    }
+
+    List<String> strings(String name, String defaultValue) {
+        return values.getOrDefault(name, List.of(defaultValue));
+    }
+
+    int integer(String name, int defaultValue) {
+        return Integer.parseInt(string(name, String.valueOf(defaultValue)));
+    }
+
+    double decimal(String name, double defaultValue) {
+        return Double.parseDouble(string(name, String.valueOf(defaultValue)));
+    }
+
+    // Durations like '250ms', '30s' or '5m'.
+    Duration duration(String name, Duration defaultValue) {
+        final String value = string(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        return Duration.parse("PT" + value.toUpperCase(Locale.ROOT));
+    }
+
+}
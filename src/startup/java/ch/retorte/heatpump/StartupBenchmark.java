@@ -0,0 +1,101 @@
+package ch.retorte.heatpump;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+// Starts the built application a few times and measures from launching the process until the first request is answered
+// ('/pumps' answers right away) and until the first data is served ('/' waits for it). Run with './gradlew startupBenchmark'.
+// Arguments: the command to start (e.g. 'java -jar build/quarkus-app/quarkus-run.jar' or 'build/heatpump-json-...-runner'), the heat pump address,
+// the number of runs, the version and the file to write the results to.
+public class StartupBenchmark {
+
+    // ---- Statics
+
+    private static final int PORT = 18080;
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(5);
+    private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+
+    // ---- Methods
+
+    public static void main(String[] args) throws Exception {
+        final List<String> command = List.of(args[0].trim().split("\\s+"));
+        final String address = args[1];
+        final int runs = Integer.parseInt(args[2]);
+        final String version = args[3];
+        final Path results = Path.of(args[4]);
+
+        final HttpClient client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+        final long[] firstRequest = new long[runs];
+        final long[] firstData = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            final long[] measured = measure(client, command, address);
+            firstRequest[run] = measured[0];
+            firstData[run] = measured[1];
+            System.out.println("Run " + (run + 1) + ": first request after " + firstRequest[run] + " ms, first data after " + firstData[run] + " ms");
+        }
+
+        final String json = "{\"version\":\"" + version + "\",\"command\":\"" + String.join(" ", command).replace("\\", "\\\\").replace("\"", "\\\"") + "\",\"runs\":" + runs
+            + ",\"firstRequest\":" + statisticsOf(firstRequest) + ",\"firstData\":" + statisticsOf(firstData) + "}";
+        Files.createDirectories(results.toAbsolutePath().getParent());
+        Files.writeString(results, json);
+        System.out.println(json);
+    }
+
+    private static long[] measure(HttpClient client, List<String> command, String address) throws IOException, InterruptedException {
+        // Passed by the environment, as a system property after '-jar' would only end up in the arguments of the application.
+        final ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.environment().put("HEATPUMP_ADDRESS", address);
+        builder.environment().put("QUARKUS_HTTP_PORT", String.valueOf(PORT));
+
+        final long start = System.nanoTime();
+        final Process process = builder.start();
+        try {
+            final long deadline = start + TIMEOUT.toNanos();
+            while (!answers(client, "/pumps")) {
+                if (deadline < System.nanoTime() || !process.isAlive()) {
+                    throw new IllegalStateException("Application did not answer within " + TIMEOUT + " (exit code " + (process.isAlive() ? "-" : process.exitValue()) + ")");
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+            final long firstRequest = System.nanoTime() - start;
+
+            // Parked by the server until the first refresh arrived.
+            if (!answers(client, "/")) {
+                throw new IllegalStateException("No data from heat pump at " + address);
+            }
+            final long firstData = System.nanoTime() - start;
+            return new long[] { firstRequest / 1_000_000, firstData / 1_000_000 };
+        }
+        finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    private static boolean answers(HttpClient client, String path) throws InterruptedException {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + PORT + path)).timeout(TIMEOUT).build();
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        }
+        catch (IOException e) {
+            // Refused (or reset) while the server is not up yet.
+            return false;
+        }
+    }
+
+    private static String statisticsOf(long[] millis) {
+        final long[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        return "{\"min\":" + sorted[0] + ",\"median\":" + sorted[sorted.length / 2] + ",\"max\":" + sorted[sorted.length - 1] + "}";
+    }
+
+}
@@ -0,0 +1,301 @@
+package ch.retorte.heatpump;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs the exporter against a stub sink on a local port, which answers with whatever status the test sets.
+class HeatpumpDataExporterTest {
+
+    // ---- Statics
+
+    private static final String CONTENT = "<Content>"
+        + "<item id='0x1'><name>Temperaturen</name>"
+        + "<item id='0x2'><name>Vorlauf</name><value>31.4°C</value></item>"
+        + "<item id='0x3'><name>Außentemperatur</name><value>-2.5°C</value></item>"
+        + "</item>"
+        + "<item id='0x4'><name>Eingänge</name>"
+        + "<item id='0x5'><name>EVU</name><value>Ein</value></item>"
+        + "</item>"
+        + "</Content>";
+
+    private static final Duration INTERVAL = Duration.ofMillis(100);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+
+    // ---- Fields
+
+    @TempDir
+    Path spool;
+
+    private HttpServer sink;
+    private volatile int status = 204;
+    private volatile CountDownLatch blocked;
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    private HeatpumpDataExporter exporter;
+    private List<Item> leaves;
+    private Heatpump heatpump;
+
+
+    // ---- Methods
+
+    @BeforeEach
+    void setUp() throws IOException {
+        sink = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        sink.createContext("/write", this::receive);
+        sink.start();
+
+        final HeatpumpDataConverter converter = new HeatpumpDataConverter();
+        converter.heatpumpLanguage = "de";
+        converter.onStart(null);
+        final HeatpumpDataParser parser = new HeatpumpDataParser();
+        parser.dataConverter = converter;
+        final HeatpumpDataParser.Content content = parser.extractContent(CONTENT);
+        final ItemStore store = ItemStore.of(content);
+        for (int i = 0; i < content.rawValues().length; i++) {
+            store.items().get(i).setRawValue(content.rawValues()[i]);
+        }
+        leaves = store.items();
+        heatpump = new Heatpump("cellar 1", "localhost", parser, null, new HeatpumpConnectionManager(), r -> {}, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (blocked != null) {
+            blocked.countDown();
+        }
+        if (exporter != null) {
+            exporter.onStop(null);
+        }
+        sink.stop(0);
+    }
+
+    @Test
+    void writesOneLinePerNumericValue() throws Exception {
+        startExporter(urlOf(sink));
+        exporter.onRefresh(refreshAt(1721466485));
+
+        awaitUntil(() -> !requests.isEmpty());
+        final Request request = requests.getFirst();
+        assertEquals("Token secret", request.authorization());
+        assertEquals("""
+            heatpump,pump=cellar\\ 1,category=temperature,id=flow numeric=31.4 1721466485
+            heatpump,pump=cellar\\ 1,category=temperature,id=outdoor numeric=-2.5 1721466485
+            heatpump,pump=cellar\\ 1,category=input,id=supplier_off_time numeric=1.0 1721466485
+            """, request.body());
+    }
+
+    @Test
+    void batchesTheRefreshesOfOneInterval() throws Exception {
+        startExporter(urlOf(sink));
+        for (int timestamp = 1000; timestamp < 1050; timestamp++) {
+            exporter.onRefresh(refreshAt(timestamp));
+        }
+
+        awaitUntil(() -> received().contains(" 1049\n"));
+        assertEquals(1, requests.size());
+        assertEquals(50 * 3, received().lines().count());
+        // Large enough to be compressed.
+        assertTrue(requests.getFirst().gzipped());
+    }
+
+    @Test
+    void spoolsWhileTheSinkFailsAndReplaysOnceItIsBack() throws Exception {
+        status = 503;
+        startExporter(urlOf(sink));
+        exporter.onRefresh(refreshAt(1000));
+
+        awaitUntil(() -> !spoolFiles().isEmpty());
+        exporter.onRefresh(refreshAt(1001));
+        awaitUntil(() -> spoolContent().contains(" 1001\n"));
+        assertTrue(received().isEmpty(), "Only failed requests so far");
+
+        status = 204;
+        requests.clear();
+        awaitUntil(() -> received().contains(" 1000\n") && received().contains(" 1001\n"));
+        awaitUntil(() -> spoolFiles().isEmpty());
+
+        // Now that the sink is back, refreshes are sent directly again.
+        requests.clear();
+        exporter.onRefresh(refreshAt(1002));
+        awaitUntil(() -> received().contains(" 1002\n"));
+        assertTrue(spoolFiles().isEmpty());
+    }
+
+    @Test
+    void spoolsWhileTheSinkIsNotReachable() throws Exception {
+        // A port nobody listens on any more.
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        startExporter("http://localhost:" + port + "/write");
+        exporter.onRefresh(refreshAt(1000));
+
+        awaitUntil(() -> spoolContent().contains(" 1000\n"));
+        assertEquals(3, spoolContent().lines().count());
+    }
+
+    @Test
+    void replaysTheSpoolOfTheLastRunOnStart() throws Exception {
+        Files.writeString(spool.resolve("0000001721466485000.lp"), "heatpump,pump=cellar,category=temperature,id=flow numeric=31.4 900\n", UTF_8);
+
+        startExporter(urlOf(sink));
+
+        awaitUntil(() -> received().contains(" 900\n"));
+        awaitUntil(() -> spoolFiles().isEmpty());
+    }
+
+    @Test
+    void spoolsTheRefreshesWhichDoNotFitIntoTheQueue() throws Exception {
+        blocked = new CountDownLatch(1);
+        startExporter(urlOf(sink));
+
+        // The sender hangs in the first request, so the queue fills up.
+        exporter.onRefresh(refreshAt(0));
+        awaitUntil(() -> !requests.isEmpty());
+        for (int timestamp = 1; timestamp <= 1200; timestamp++) {
+            exporter.onRefresh(refreshAt(timestamp));
+        }
+        // Nothing is written while the sender hangs, the refreshes wait in memory.
+        assertTrue(spoolFiles().isEmpty());
+
+        blocked.countDown();
+        awaitUntil(() -> received().lines().count() == 1201 * 3);
+        awaitUntil(() -> spoolFiles().isEmpty());
+        for (int timestamp = 0; timestamp <= 1200; timestamp++) {
+            assertTrue(received().contains(" " + timestamp + "\n"), "Refresh " + timestamp + " was lost");
+        }
+        assertEquals(0, exporter.getDropped());
+    }
+
+    @Test
+    void dropsTheRefreshesWhichDoNotFitIntoTheOverflow() throws Exception {
+        blocked = new CountDownLatch(1);
+        startExporter(urlOf(sink));
+
+        exporter.onRefresh(refreshAt(0));
+        awaitUntil(() -> !requests.isEmpty());
+        // 1000 fit into the queue and 1000 into the overflow.
+        for (int timestamp = 1; timestamp <= 2005; timestamp++) {
+            exporter.onRefresh(refreshAt(timestamp));
+        }
+        assertEquals(5, exporter.getDropped());
+
+        blocked.countDown();
+        awaitUntil(() -> received().lines().count() == 2001 * 3);
+        awaitUntil(() -> spoolFiles().isEmpty());
+        assertFalse(received().contains(" 2001\n"));
+    }
+
+    private void startExporter(String url) {
+        final HeatpumpDataCompression compression = new HeatpumpDataCompression();
+        compression.minSize = 1024;
+
+        exporter = new HeatpumpDataExporter();
+        exporter.compression = compression;
+        exporter.url = Optional.of(url);
+        exporter.token = Optional.of("secret");
+        exporter.interval = INTERVAL;
+        exporter.spoolPath = spool.toString();
+        exporter.onStart(null);
+    }
+
+    private HeatpumpRefresh refreshAt(long timestamp) {
+        return new HeatpumpRefresh(heatpump, timestamp, timestamp, leaves, leaves, true);
+    }
+
+    private String urlOf(HttpServer server) {
+        return "http://localhost:" + server.getAddress().getPort() + "/write";
+    }
+
+    private void receive(HttpExchange exchange) throws IOException {
+        final boolean gzipped = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream in = gzipped ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            final int answer = status;
+            requests.add(new Request(exchange.getRequestHeaders().getFirst("Authorization"), new String(in.readAllBytes(), UTF_8), gzipped, answer));
+
+            final CountDownLatch latch = blocked;
+            if (latch != null) {
+                latch.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                blocked = null;
+            }
+            exchange.sendResponseHeaders(answer, -1);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // The lines of all requests the sink accepted.
+    private String received() {
+        final StringBuilder builder = new StringBuilder();
+        for (Request request : requests) {
+            if (request.status() / 100 == 2) {
+                builder.append(request.body());
+            }
+        }
+        return builder.toString();
+    }
+
+    private List<Path> spoolFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spool)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private String spoolContent() throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        for (Path file : spoolFiles()) {
+            builder.append(Files.readString(file, UTF_8));
+        }
+        return builder.toString();
+    }
+
+    private static void awaitUntil(ThrowingCondition condition) throws Exception {
+        final long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.met()) {
+            if (deadline < System.nanoTime()) {
+                fail("Condition not met within " + TIMEOUT);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+
+    // ---- Inner classes
+
+    private interface ThrowingCondition {
+
+        boolean met() throws Exception;
+    }
+
+    private record Request(String authorization, String body, boolean gzipped, int status) {}
+
+}
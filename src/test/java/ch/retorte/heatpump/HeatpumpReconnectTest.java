@@ -0,0 +1,241 @@
+package ch.retorte.heatpump;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs a heat pump against the simulator on a local port, which can be told to drop every session or to stop answering refreshes.
+class HeatpumpReconnectTest {
+
+    // ---- Statics
+
+    private static final Duration INITIAL_DELAY = Duration.ofMillis(100);
+    private static final Duration MAX_DELAY = Duration.ofMillis(800);
+    private static final int MISSED_REFRESHES = 3;
+
+    // Scheduling on a busy machine may delay a reconnect a bit, but never bring it forward.
+    private static final long SLACK_MILLIS = 300;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+
+    // ---- Fields
+
+    private LuxtronikSimulator simulator;
+    private LuxtronikSimulator.SimulatedHeatpump controller;
+    private HeatpumpConnectionManager connections;
+    private Heatpump heatpump;
+
+    // When each session was accepted (System.nanoTime), as seen on the connection count of the simulator.
+    private final List<Long> sessions = new CopyOnWriteArrayList<>();
+    private Thread sessionRecorder;
+
+
+    // ---- Methods
+
+    @BeforeEach
+    void setUp() throws IOException {
+        simulator = new LuxtronikSimulator(Options.of(new String[0]));
+        controller = simulator.simulate(0, 42);
+        sessionRecorder = Thread.ofPlatform().daemon().start(() -> {
+            long seen = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                for (final long connected = simulator.connections(); seen < connected; seen++) {
+                    sessions.add(System.nanoTime());
+                }
+                LockSupport.parkNanos(200_000);
+            }
+        });
+
+        connections = new HeatpumpConnectionManager();
+        connections.initialDelay = INITIAL_DELAY;
+        connections.maxDelay = MAX_DELAY;
+        connections.missedRefreshes = MISSED_REFRESHES;
+        connections.onStart(null);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (heatpump != null) {
+            heatpump.stop();
+        }
+        connections.onStop(null);
+        sessionRecorder.interrupt();
+        controller.close();
+    }
+
+    @Test
+    void backoffDelaysGrowUpToTheMaximum() {
+        final HeatpumpConnectionManager.Backoff backoff = connections.newBackoff();
+
+        long ceiling = INITIAL_DELAY.toMillis();
+        for (int attempt = 0; attempt < 8; attempt++) {
+            final long delay = backoff.next().toMillis();
+            assertTrue(ceiling / 2 <= delay && delay <= ceiling, "Attempt " + attempt + " waits " + delay + " ms, expected up to " + ceiling + " ms");
+            assertEquals(MAX_DELAY.toMillis() <= ceiling, backoff.atMaximum());
+            ceiling = Math.min(ceiling * 2, MAX_DELAY.toMillis());
+        }
+        assertEquals(8, backoff.attempts());
+
+        backoff.reset();
+        assertTrue(backoff.next().toMillis() <= INITIAL_DELAY.toMillis());
+    }
+
+    @Test
+    void backoffCountsEveryAttemptOfConcurrentCallers() throws Exception {
+        final HeatpumpConnectionManager.Backoff backoff = connections.newBackoff();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    backoff.next();
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80_000, backoff.attempts());
+    }
+
+    @Test
+    void reconnectsWithGrowingDelaysWhenTheControllerDropsTheSession() throws Exception {
+        simulator.setReject(1);
+        startHeatpump();
+
+        awaitUntil(() -> 7 <= sessions.size());
+        final List<Long> accepted = List.copyOf(sessions);
+
+        // The gap before the n-th reconnect is the backoff delay (half to full ceiling) plus the time to open and drop a session.
+        long ceiling = INITIAL_DELAY.toMillis();
+        for (int i = 1; i < accepted.size(); i++) {
+            final long gap = (accepted.get(i) - accepted.get(i - 1)) / 1_000_000;
+            assertTrue(ceiling / 2 <= gap, "Reconnect " + i + " after " + gap + " ms, before its delay of at least " + ceiling / 2 + " ms");
+            assertTrue(gap <= ceiling + SLACK_MILLIS, "Reconnect " + i + " after " + gap + " ms, expected at most " + ceiling + " ms");
+            ceiling = Math.min(ceiling * 2, MAX_DELAY.toMillis());
+        }
+    }
+
+    @Test
+    void reportsOfTheSameLossOnlyScheduleOneReconnect() throws Exception {
+        simulator.setReject(1);
+        startHeatpump();
+
+        // The cron keeps asking all along; on top of that the dropped socket reports its close (and possibly an error).
+        final Thread cron = Thread.ofPlatform().daemon().start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                connections.execute(heatpump::operate);
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        try {
+            awaitUntil(() -> 6 <= sessions.size());
+        }
+        finally {
+            cron.interrupt();
+        }
+
+        // A second reconnect for the same loss would come without any delay.
+        final List<Long> accepted = List.copyOf(sessions);
+        for (int i = 1; i < accepted.size(); i++) {
+            final long gap = (accepted.get(i) - accepted.get(i - 1)) / 1_000_000;
+            assertTrue(INITIAL_DELAY.toMillis() / 2 <= gap, "Two sessions only " + gap + " ms apart");
+        }
+    }
+
+    @Test
+    void watchdogDropsTheSessionAfterTheMissedRefreshes() throws Exception {
+        simulator.setSilence(1);
+        startHeatpump();
+        awaitDataSelected(1);
+
+        // Every call stands for a refresh interval of the cron; the controller gets the REFRESH, but never answers.
+        for (int interval = 1; interval <= MISSED_REFRESHES; interval++) {
+            heatpump.operate();
+            final int sent = interval;
+            awaitUntil(() -> simulator.refreshes() == sent);
+            assertEquals(1, sessions.size());
+            assertEquals(0, simulator.closes(), "Session dropped after only " + interval + " missed refreshes");
+        }
+
+        heatpump.operate();
+        awaitUntil(() -> simulator.closes() == 1);
+        assertEquals(MISSED_REFRESHES, simulator.refreshes());
+
+        // Once a new session delivers data again, the count starts over.
+        awaitUntil(() -> sessions.size() == 2);
+        awaitDataSelected(2);
+        simulator.setSilence(0);
+        heatpump.operate();
+        awaitUntil(() -> heatpump.getSnapshot().sequence() == 3);
+        for (int interval = 1; interval < MISSED_REFRESHES; interval++) {
+            heatpump.operate();
+        }
+        assertEquals(1, simulator.closes());
+    }
+
+    private void startHeatpump() {
+        final HeatpumpDataConverter converter = new HeatpumpDataConverter();
+        converter.heatpumpLanguage = "de";
+        converter.onStart(null);
+        final HeatpumpDataParser parser = new HeatpumpDataParser();
+        parser.dataConverter = converter;
+        final HeatpumpDataJsonWriter jsonWriter = new HeatpumpDataJsonWriter();
+        jsonWriter.version = "test";
+        jsonWriter.commit = "test";
+        final HeatpumpInstrumentation instrumentation = new HeatpumpInstrumentation();
+        instrumentation.registry = new SimpleMeterRegistry();
+
+        heatpump = new Heatpump("test", "127.0.0.1:" + controller.port(), parser, jsonWriter, connections, refresh -> {}, instrumentation.recorderFor("test"));
+        heatpump.start();
+    }
+
+    // The snapshot is published just before the state machine moves on to refreshing, so it gets a moment for that.
+    private void awaitDataSelected(long sequence) throws Exception {
+        awaitUntil(() -> heatpump.getSnapshot() != null && heatpump.getSnapshot().sequence() == sequence);
+        Thread.sleep(100);
+    }
+
+    private static void awaitUntil(Condition condition) throws Exception {
+        final long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.met()) {
+            if (deadline < System.nanoTime()) {
+                fail("Condition not met within " + TIMEOUT);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+
+    // ---- Inner classes
+
+    private interface Condition {
+
+        boolean met() throws Exception;
+    }
+
+}